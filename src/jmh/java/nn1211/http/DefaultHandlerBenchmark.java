@@ -0,0 +1,123 @@
+package nn1211.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import nn1211.http.server.HttpServer;
+
+/**
+ * Serving resource files by {@link DefaultHandler}, with and without the
+ * {@link FileCache}. The server is configured but not started.
+ *
+ * @author nn1211
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DefaultHandlerBenchmark {
+
+    @Param({"true", "false"})
+    private boolean cached;
+
+    private Path resources;
+    private HttpServer server;
+    private final DefaultHandler handler = new DefaultHandler();
+
+    private HttpRequest page;
+    private HttpRequest compressed;
+    private HttpRequest conditional;
+
+    @Setup
+    public void setUp() throws IOException {
+        resources = Files.createTempDirectory("benchmark");
+        Files.write(resources.resolve("index.html"), text(5 * 1024));
+        Files.write(resources.resolve("site.css"), text(20 * 1024));
+
+        server = HttpServer.withPort(0).resourcePath(resources.toString())
+                .fileCache(cached ? new FileCache() : null);
+
+        page = request("/index.html", "");
+        compressed = request("/site.css", "Accept-Encoding: gzip\r\n");
+
+        String etag = handler.handle(page).headers()
+                .get(HttpHeader.Name.ETAG).value();
+        conditional = request("/index.html",
+                "If-None-Match: " + etag + "\r\n");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        server.stop();
+        Files.delete(resources.resolve("index.html"));
+        Files.delete(resources.resolve("site.css"));
+        Files.delete(resources);
+    }
+
+    @Benchmark
+    public HttpResponse page() throws IOException {
+        return handler.handle(page);
+    }
+
+    /**
+     * Serve a compressed file, compressed on every request when not cached
+     *
+     * @return the response
+     * @throws IOException
+     */
+    @Benchmark
+    public HttpResponse compressed() throws IOException {
+        return handler.handle(compressed);
+    }
+
+    /**
+     * Answer a request revalidating a file with 304 Not Modified
+     *
+     * @return the response
+     * @throws IOException
+     */
+    @Benchmark
+    public HttpResponse notModified() throws IOException {
+        return handler.handle(conditional);
+    }
+
+    private static byte[] text(int size) {
+        StringBuilder text = new StringBuilder(size);
+        for (int i = 0; text.length() < size; i++) {
+            text.append("<p class=\"item-").append(i % 97)
+                    .append("\">Lorem ipsum dolor sit amet</p>\n");
+        }
+        text.setLength(size);
+
+        return text.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static HttpRequest request(String uri, String headers) {
+        HttpRequestParser parser = new HttpRequestParser();
+        parser.feed(ByteBuffer.wrap(("GET " + uri + " HTTP/1.1\r\n"
+                + "Host: localhost\r\n" + headers + "\r\n")
+                .getBytes(StandardCharsets.ISO_8859_1)));
+
+        return parser.next();
+    }
+}
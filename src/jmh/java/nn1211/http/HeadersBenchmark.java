@@ -0,0 +1,88 @@
+package nn1211.http;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import nn1211.http.HttpHeader.Name;
+
+/**
+ * Building and reading {@link HttpHeaders}, as done for every response
+ *
+ * @author nn1211
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HeadersBenchmark {
+
+    private static final HttpHeader ACCEPT_RANGES = HttpHeader
+            .from(Name.ACCEPT_RANGES, "bytes");
+    private static final HttpHeader VARY = HttpHeader
+            .from(Name.VARY, "Accept-Encoding");
+
+    /**
+     * Put the headers of a static file response
+     *
+     * @return the headers
+     */
+    @Benchmark
+    public HttpHeaders put() {
+        return headers();
+    }
+
+    @Benchmark
+    public List<HttpHeader> putAndList() {
+        return headers().asList();
+    }
+
+    /**
+     * Encode the headers in order, as serialized in a response
+     *
+     * @return the length of the encoded headers
+     */
+    @Benchmark
+    public int putAndEncode() {
+        HttpHeaders headers = headers();
+        int length = 0;
+        for (int i = 0; i < headers.size(); i++) {
+            length += headers.get(i).toBytes().length;
+        }
+
+        return length;
+    }
+
+    /**
+     * Look a header up by a name in another case
+     *
+     * @return the header
+     */
+    @Benchmark
+    public HttpHeader putAndGetByString() {
+        return headers().get("etag");
+    }
+
+    private static HttpHeaders headers() {
+        return new HttpHeaders()
+                .put(HttpHeader.buildContentType(Content.Type.HTML))
+                .put(HttpHeader.buildContentLength(5120))
+                .put(HttpHeader.buildETag(5120, 1700000000000L, "gzip"))
+                .put(HttpHeader.buildLastModified(1700000000000L))
+                .put(ACCEPT_RANGES)
+                .put(VARY)
+                .put(HttpHeader.from(Name.CONTENT_ENCODING, "gzip"));
+    }
+}
@@ -0,0 +1,98 @@
+package nn1211.http;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import nn1211.http.HttpRequest.Method;
+
+/**
+ * Routing by {@link HandlerManager#get(HttpRequest)} in tables of static,
+ * captured and wildcard routes
+ *
+ * @author nn1211
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RouterBenchmark {
+
+    /**
+     * Number of routes of each kind
+     */
+    @Param({"10", "1000"})
+    private int routes;
+
+    private HttpRequest staticRoute;
+    private HttpRequest capturedRoute;
+    private HttpRequest wildcardRoute;
+    private HttpRequest noRoute;
+
+    @Setup
+    public void setUp() {
+        Handler handler = req -> HttpResponse.notFound();
+        for (int i = 0; i < routes; i++) {
+            HandlerManager.INSTANCE
+                    .register(Method.GET, "/pages/page" + i, handler)
+                    .register(Method.GET, "/api/v1/res" + i + "/{id}/items",
+                            handler)
+                    .register(Method.GET, "/files" + i + "/*", handler);
+        }
+
+        int last = routes - 1;
+        staticRoute = request("/pages/page" + last);
+        capturedRoute = request("/api/v1/res" + last + "/8231/items?page=2");
+        wildcardRoute = request("/files" + last + "/img/logo.png");
+        noRoute = request("/index.html");
+    }
+
+    @Benchmark
+    public Handler staticRoute() {
+        return HandlerManager.INSTANCE.get(staticRoute);
+    }
+
+    @Benchmark
+    public Handler capturedRoute() {
+        return HandlerManager.INSTANCE.get(capturedRoute);
+    }
+
+    @Benchmark
+    public Handler wildcardRoute() {
+        return HandlerManager.INSTANCE.get(wildcardRoute);
+    }
+
+    /**
+     * Route a request to the default handler, as resource files are
+     *
+     * @return the default handler
+     */
+    @Benchmark
+    public Handler noRoute() {
+        return HandlerManager.INSTANCE.get(noRoute);
+    }
+
+    private static HttpRequest request(String uri) {
+        HttpRequestParser parser = new HttpRequestParser();
+        parser.feed(ByteBuffer.wrap(("GET " + uri + " HTTP/1.1\r\n"
+                + "Host: localhost\r\n\r\n")
+                .getBytes(StandardCharsets.ISO_8859_1)));
+
+        return parser.next();
+    }
+}
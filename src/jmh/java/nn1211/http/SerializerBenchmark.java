@@ -0,0 +1,75 @@
+package nn1211.http;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import nn1211.http.Content.Type;
+
+/**
+ * Serialization of responses by {@link HttpResponse#toBytes()}, which copies
+ * the body, and {@link HttpResponse#toBuffers(boolean)}, which doesn't
+ *
+ * @author nn1211
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SerializerBenchmark {
+
+    @Param({"0", "1024", "65536"})
+    private int bodySize;
+
+    private byte[] body;
+
+    @Setup
+    public void setUp() {
+        body = new byte[bodySize];
+        for (int i = 0; i < bodySize; i++) {
+            body[i] = (byte) ('a' + i % 26);
+        }
+    }
+
+    @Benchmark
+    public byte[] toBytes() {
+        return response().toBytes();
+    }
+
+    @Benchmark
+    public ByteBuffer[] toBuffers() {
+        return response().toBuffers(true);
+    }
+
+    /**
+     * Serialize the head only, as for HEAD requests and file bodies
+     *
+     * @return the head
+     */
+    @Benchmark
+    public ByteBuffer[] head() {
+        return response().toBuffers(false);
+    }
+
+    private HttpResponse response() {
+        HttpResponse resp = HttpResponse.ok(Content.build(Type.HTML, body));
+        resp.headers().put(HttpHeader.buildETag(bodySize, 1700000000000L))
+                .put(HttpHeader.buildLastModified(1700000000000L));
+
+        return resp;
+    }
+}
@@ -0,0 +1,482 @@
+package nn1211.http.server;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * End-to-end load test of a {@link HttpServer}, started in-process on an
+ * ephemeral port and driven over loopback by an open-loop load generator.
+ * Each client connection sends its requests on a fixed schedule whatever the
+ * response times, and the latency of a request is measured from the time it
+ * was scheduled, so that a stalled server is charged for the requests it
+ * delayed (coordinated omission). The service time, from the actual send, is
+ * reported as well.
+ * <p>
+ * Every mode of {@code --modes} runs against a fresh server with the same
+ * load, for example:
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar nn1211.http.server.LoadTest \
+ *     --modes=blocking,pooled,nio --connections=32 --rate=20000 \
+ *     --duration=20 --mix=1k:80,64k:15,1m:5
+ * </pre>
+ *
+ * Options:
+ * <ul>
+ * <li>{@code modes}: {@code blocking} (a thread per connection),
+ * {@code pooled} (blocking, on {@code threads} threads), {@code virtual}
+ * (blocking, on virtual threads) and {@code nio}, default {@code
+ * blocking,pooled,nio}</li>
+ * <li>{@code connections}: number of client connections, default 16</li>
+ * <li>{@code rate}: total requests per second, default 2000</li>
+ * <li>{@code duration}, {@code warmup}: in seconds, default 10 and 2</li>
+ * <li>{@code keepAlive}: whether connections are reused, default
+ * {@code true}</li>
+ * <li>{@code mix}: sizes of the served files and their weights, default
+ * {@code 1k:80,64k:15,1m:5}</li>
+ * <li>{@code threads}: pool size of the {@code pooled} mode, default two per
+ * processor</li>
+ * </ul>
+ *
+ * @author nn1211
+ *
+ */
+public final class LoadTest {
+
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9, 100};
+
+    private final Map<String, String> options;
+
+    private final int connections;
+    private final int rate;
+    private final long duration;
+    private final long warmup;
+    private final boolean keepAlive;
+    private final int threads;
+
+    /**
+     * The served files, and the cumulative weight of each
+     */
+    private final List<String> paths = new ArrayList<>();
+    private final List<Integer> sizes = new ArrayList<>();
+    private int[] weights;
+
+    /**
+     * Results of a client connection, only accessed from its thread until
+     * it's joined
+     *
+     * @author nn1211
+     *
+     */
+    private static final class Results {
+
+        private long[] latencies = new long[1024];
+        private long[] serviceTimes = new long[1024];
+        private int count;
+        private long errors;
+        private long bytes;
+
+        void record(long latency, long serviceTime) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+                serviceTimes = Arrays.copyOf(serviceTimes, count * 2);
+            }
+            latencies[count] = latency;
+            serviceTimes[count++] = serviceTime;
+        }
+    }
+
+    private LoadTest(Map<String, String> options)
+            throws IllegalArgumentException {
+
+        this.options = options;
+        connections = Integer.parseInt(option("connections", "16"));
+        rate = Integer.parseInt(option("rate", "2000"));
+        duration = TimeUnit.SECONDS.toNanos(
+                Long.parseLong(option("duration", "10")));
+        warmup = TimeUnit.SECONDS.toNanos(
+                Long.parseLong(option("warmup", "2")));
+        keepAlive = Boolean.parseBoolean(option("keepAlive", "true"));
+        threads = Integer.parseInt(option("threads", String.valueOf(
+                Runtime.getRuntime().availableProcessors() * 2)));
+
+        if (connections < 1 || rate < connections || duration <= 0
+                || warmup < 0 || threads < 1) {
+            throw new IllegalArgumentException("Invalid load test options");
+        }
+    }
+
+    /**
+     * Run the load test
+     *
+     * @param args {@code --name=value} options
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public static void main(String[] args)
+            throws IOException, InterruptedException {
+
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || -1 == eq) {
+                System.err.println("Usage: LoadTest [--name=value]..."
+                        + " (see the documentation of the class)");
+                System.exit(2);
+            }
+            options.put(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+
+        LoadTest test = new LoadTest(options);
+        Path resources = Files.createTempDirectory("loadtest");
+        try {
+            test.createFiles(resources);
+
+            List<String> report = new ArrayList<>();
+            for (String mode : test.option("modes", "blocking,pooled,nio")
+                    .split(",")) {
+                try {
+                    report.add(test.run(mode.trim(), resources));
+                } catch (UnsupportedOperationException ex) {
+                    report.add(String.format(Locale.ROOT, "%-9s %s",
+                            mode.trim(), ex.getMessage()));
+                }
+            }
+
+            System.out.println();
+            System.out.println(test.header());
+            report.forEach(System.out::println);
+        } finally {
+            for (String path : test.paths) {
+                Files.deleteIfExists(resources.resolve(path.substring(1)));
+            }
+            Files.delete(resources);
+        }
+    }
+
+    private String option(String name, String defaultValue) {
+        return options.getOrDefault(name, defaultValue);
+    }
+
+    /**
+     * Create a file for each size of the mix
+     *
+     * @param resources
+     * @throws IOException
+     */
+    private void createFiles(Path resources) throws IOException {
+        String[] entries = option("mix", "1k:80,64k:15,1m:5").split(",");
+        weights = new int[entries.length];
+        int total = 0;
+        for (int i = 0; i < entries.length; i++) {
+            String[] entry = entries[i].trim().split(":");
+            int size = parseSize(entry[0]);
+            total += 1 == entry.length ? 1 : Integer.parseInt(entry[1]);
+            weights[i] = total;
+
+            String name = "f" + i + "-" + entry[0] + ".txt";
+            byte[] data = new byte[size];
+            Arrays.fill(data, (byte) 'x');
+            Files.write(resources.resolve(name), data);
+            paths.add("/" + name);
+            sizes.add(size);
+        }
+    }
+
+    private static int parseSize(String size) {
+        String lower = size.toLowerCase(Locale.ROOT);
+        int unit = lower.endsWith("k") ? 1024
+                : lower.endsWith("m") ? 1024 * 1024 : 1;
+        return Integer.parseInt(1 == unit ? lower
+                : lower.substring(0, lower.length() - 1)) * unit;
+    }
+
+    /**
+     * Start a server in a mode, load it and stop it
+     *
+     * @param mode
+     * @param resources
+     * @return the report line of the mode
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private String run(String mode, Path resources)
+            throws IOException, InterruptedException {
+
+        Engine engine = Engine.BLOCKING;
+        ExecutorStrategy strategy;
+        switch (mode) {
+            case "blocking":
+                strategy = ExecutorStrategy.threadPerConnection();
+                break;
+            case "pooled":
+                strategy = ExecutorStrategy.boundedPool(threads);
+                break;
+            case "virtual":
+                strategy = ExecutorStrategy.virtualThreads();
+                break;
+            case "nio":
+                engine = Engine.NIO;
+                strategy = null; // The default worker pool
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown mode " + mode);
+        }
+
+        HttpServer server = HttpServer.withPort(0)
+                .resourcePath(resources.toString()).engine(engine)
+                .executor(strategy);
+        server.start();
+
+        try {
+            InetSocketAddress address = new InetSocketAddress(
+                    "127.0.0.1", server.port());
+            Results[] results = new Results[connections];
+            Thread[] clients = new Thread[connections];
+            long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+            for (int i = 0; i < connections; i++) {
+                Results r = results[i] = new Results();
+                int index = i;
+                clients[i] = new Thread(() -> drive(address, index, start, r),
+                        "LoadTest-client-" + i);
+                clients[i].start();
+            }
+            for (Thread client : clients) {
+                client.join();
+            }
+
+            return report(mode, results);
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * Send the requests of a client connection on its schedule, until the
+     * end of the test
+     *
+     * @param address
+     * @param index the index of the connection
+     * @param start when the first request of the test is scheduled
+     * @param results
+     */
+    private void drive(InetSocketAddress address, int index, long start,
+            Results results) {
+
+        long interval = connections * TimeUnit.SECONDS.toNanos(1) / rate;
+        long end = start + warmup + duration;
+        SplittableRandom random = new SplittableRandom(index);
+        byte[][] requests = new byte[paths.size()][];
+        for (int i = 0; i < requests.length; i++) {
+            requests[i] = ("GET " + paths.get(i) + " HTTP/1.1\r\n"
+                    + "Host: " + address.getHostString() + "\r\n"
+                    + (keepAlive ? "" : "Connection: close\r\n") + "\r\n")
+                    .getBytes(StandardCharsets.ISO_8859_1);
+        }
+
+        Socket socket = null;
+        InputStream in = null;
+        OutputStream out = null;
+        // Spread the connections over the first interval
+        for (long scheduled = start + index * interval / connections;
+                scheduled < end; scheduled += interval) {
+
+            long wait = scheduled - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+
+            int file = pick(random);
+            long sent = System.nanoTime();
+            try {
+                if (null == socket) {
+                    socket = new Socket();
+                    socket.setTcpNoDelay(true);
+                    socket.connect(address);
+                    in = new BufferedInputStream(socket.getInputStream());
+                    out = socket.getOutputStream();
+                }
+                out.write(requests[file]);
+                out.flush();
+
+                boolean close = readResponse(in, sizes.get(file));
+                long done = System.nanoTime();
+                if (scheduled >= start + warmup) {
+                    results.record(done - scheduled, done - sent);
+                    results.bytes += sizes.get(file);
+                }
+
+                if (close || !keepAlive) {
+                    socket.close();
+                    socket = null;
+                }
+            } catch (IOException ex) {
+                if (scheduled >= start + warmup) {
+                    results.errors++;
+                }
+                if (null != socket) {
+                    closeQuietly(socket);
+                    socket = null;
+                }
+            }
+        }
+
+        if (null != socket) {
+            closeQuietly(socket);
+        }
+    }
+
+    private int pick(SplittableRandom random) {
+        int value = random.nextInt(weights[weights.length - 1]);
+        for (int i = 0;; i++) {
+            if (value < weights[i]) {
+                return i;
+            }
+        }
+    }
+
+    /**
+     * Read a response and check that it's a 200 OK with the expected body
+     *
+     * @param in
+     * @param size the expected body length
+     * @return {@code true} if the server closes the connection after it
+     * @throws IOException if the response is unexpected
+     */
+    private static boolean readResponse(InputStream in, int size)
+            throws IOException {
+
+        String statusLine = readLine(in);
+        if (!statusLine.startsWith("HTTP/1.1 200 ")) {
+            throw new IOException("Unexpected response " + statusLine);
+        }
+
+        long length = -1;
+        boolean close = false;
+        for (String line; !(line = readLine(in)).isEmpty();) {
+            String lower = line.toLowerCase(Locale.ROOT);
+            if (lower.startsWith("content-length:")) {
+                length = Long.parseLong(line.substring(15).trim());
+            } else if (lower.startsWith("connection:")) {
+                close = lower.contains("close");
+            }
+        }
+        if (size != length) {
+            throw new IOException("Unexpected content length " + length);
+        }
+
+        for (long n = 0; n < length;) {
+            long skipped = in.skip(length - n);
+            if (skipped <= 0) {
+                if (-1 == in.read()) {
+                    throw new IOException("Truncated body");
+                }
+                skipped = 1;
+            }
+            n += skipped;
+        }
+
+        return close;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder(64);
+        for (int b; '\n' != (b = in.read());) {
+            if (-1 == b) {
+                throw new IOException("Connection closed");
+            }
+            if ('\r' != b) {
+                line.append((char) b);
+            }
+        }
+
+        return line.toString();
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ex) {
+            // Already failed
+        }
+    }
+
+    private String header() {
+        StringBuilder header = new StringBuilder(String.format(Locale.ROOT,
+                "%-9s %9s %7s %9s %8s", "mode", "requests", "errors",
+                "req/s", "MiB/s"));
+        for (double p : PERCENTILES) {
+            header.append(String.format(Locale.ROOT, " %9s",
+                    100 == p ? "max" : "p" + format(p)));
+        }
+        header.append("   (latency in ms, service time p50/p99 in ms)");
+
+        return header.toString();
+    }
+
+    private String report(String mode, Results[] results) {
+        int count = 0;
+        long errors = 0;
+        long bytes = 0;
+        for (Results r : results) {
+            count += r.count;
+            errors += r.errors;
+            bytes += r.bytes;
+        }
+
+        long[] latencies = new long[count];
+        long[] serviceTimes = new long[count];
+        int n = 0;
+        for (Results r : results) {
+            System.arraycopy(r.latencies, 0, latencies, n, r.count);
+            System.arraycopy(r.serviceTimes, 0, serviceTimes, n, r.count);
+            n += r.count;
+        }
+        Arrays.sort(latencies);
+        Arrays.sort(serviceTimes);
+
+        double seconds = duration / 1e9;
+        StringBuilder line = new StringBuilder(String.format(Locale.ROOT,
+                "%-9s %9d %7d %9.0f %8.1f", mode, count, errors,
+                count / seconds, bytes / seconds / (1024 * 1024)));
+        for (double p : PERCENTILES) {
+            line.append(String.format(Locale.ROOT, " %9.3f",
+                    percentile(latencies, p) / 1e6));
+        }
+        line.append(String.format(Locale.ROOT, "   %.3f/%.3f",
+                percentile(serviceTimes, 50) / 1e6,
+                percentile(serviceTimes, 99) / 1e6));
+
+        return line.toString();
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        if (0 == sorted.length) {
+            return 0;
+        }
+
+        int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    private static String format(double value) {
+        return value == (long) value ? String.valueOf((long) value)
+                : String.valueOf(value);
+    }
+}
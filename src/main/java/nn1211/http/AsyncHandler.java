@@ -0,0 +1,52 @@
+package nn1211.http;
+
+import java.io.IOException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Asynchronous HTTP handler, whose response is completed later, typically by
+ * the thread of a downstream call. Servers send the response once the stage
+ * completes, or a 500 response if it completes exceptionally. Only the
+ * {@link nn1211.http.server.Engine#NIO} engine doesn't wait for it: the
+ * blocking engine dedicates a thread to each connection, which waits for the
+ * responses of its requests.
+ *
+ * @author nn1211
+ *
+ */
+@FunctionalInterface
+public interface AsyncHandler extends Handler {
+
+    /**
+     * Handle a {@link HttpRequest} and returns the future {@link HttpResponse}
+     *
+     * @param req
+     * @return a stage completed with the response, or exceptionally if the
+     * request can't be handled
+     */
+    CompletionStage<HttpResponse> handleAsync(HttpRequest req);
+
+    /**
+     * Wait for the response of a request
+     *
+     * @param req
+     * @return a {@link HttpResponse}
+     * @throws IOException if the stage completed with an I/O failure
+     */
+    @Override
+    default HttpResponse handle(HttpRequest req) throws IOException {
+        try {
+            return handleAsync(req).toCompletableFuture().join();
+        } catch (CompletionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw ex;
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package nn1211.http;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+import nn1211.http.Content.ByteArrayContent;
+import nn1211.http.Content.FileContent;
+import nn1211.http.Content.Type;
+
+/**
+ * The byte ranges of a Range request header and the 206 responses carrying
+ * them, either as a single part or as a multipart/byteranges body. Ranges of
+ * a file are sent as regions of a {@link FileContent}, so only the requested
+ * bytes are read.
+ *
+ * @author nn1211
+ *
+ */
+final class ByteRanges {
+
+    /**
+     * Maximum number of ranges of a request, more are ignored
+     */
+    static final int MAX_RANGES = 16;
+
+    private static final long[] UNSATISFIABLE = {};
+
+    private ByteRanges() {
+    }
+
+    /**
+     * Parse the value of a Range header. Ranges are sorted and overlapping
+     * ones coalesced.
+     *
+     * @param value
+     * @param length the length of the resource
+     * @return null if the header is invalid and has to be ignored, an empty
+     * array if no range is satisfiable, the bounds of the ranges otherwise,
+     * as pairs of an inclusive start and an exclusive end
+     */
+    static long[] parse(String value, long length) {
+        if (!value.regionMatches(true, 0, "bytes=", 0, 6)) {
+            return null;
+        }
+
+        String[] specs = value.substring(6).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+
+        long[] ranges = new long[specs.length * 2];
+        int size = 0;
+        for (String spec : specs) {
+            spec = spec.trim();
+            if (spec.isEmpty()) {
+                continue; // Empty list element
+            }
+
+            int dash = spec.indexOf('-');
+            if (-1 == dash) {
+                return null;
+            }
+
+            long first = number(spec, 0, dash);
+            long last = number(spec, dash + 1, spec.length());
+            long start;
+            long end;
+            if (dash == 0) { // Suffix range
+                if (last < 0) {
+                    return null;
+                }
+                start = Math.max(0, length - last);
+                end = last > 0 ? length : 0;
+            } else {
+                if (first < 0 || (dash + 1 < spec.length()
+                        && (last < 0 || last < first))) {
+                    return null;
+                }
+                start = first;
+                end = dash + 1 == spec.length() || last >= length ? length
+                        : last + 1;
+            }
+
+            if (start < end) { // Satisfiable
+                ranges[size++] = start;
+                ranges[size++] = end;
+            }
+        }
+
+        return 0 == size ? UNSATISFIABLE : coalesce(ranges, size);
+    }
+
+    /**
+     * Determine if a Range header applies given the If-Range header of a
+     * request, which must match the current version of the resource
+     *
+     * @param req
+     * @param etag
+     * @param lastModified
+     * @return {@code true} if the ranges are to be sent
+     */
+    static boolean applies(HttpRequest req, HttpHeader etag,
+            long lastModified) {
+
+        HttpHeader ifRange = req.headers().get(HttpHeader.Name.IF_RANGE);
+        if (null == ifRange) {
+            return true;
+        }
+
+        String value = ifRange.value();
+        if (value.startsWith("\"")) { // Strong comparison
+            return value.equals(etag.value());
+        }
+        if (value.startsWith("W/")) {
+            return false;
+        }
+
+        long date = HttpHeader.parseDate(value);
+        return -1 != date && lastModified / 1000 == date / 1000;
+    }
+
+    /**
+     * Build the 206 response carrying ranges of a resource
+     *
+     * @param ranges the bounds returned by {@link #parse(String, long)}
+     * @param length the length of the resource
+     * @param type the content type of the resource
+     * @param file the file of the resource, if not in memory
+     * @param data the bytes of the resource, if in memory
+     * @return a HTTP status 206 response
+     */
+    static HttpResponse respond(long[] ranges, long length, Type type,
+            Path file, byte[] data) {
+
+        if (2 == ranges.length) {
+            long start = ranges[0];
+            long end = ranges[1];
+            HttpResponse resp = HttpResponse.partialContent(null == data
+                    ? new FileContent(file, type, start, end - start)
+                    : Content.build(type, Arrays.copyOfRange(data,
+                            (int) start, (int) end)));
+            resp.headers().put(HttpHeader.from(HttpHeader.Name.CONTENT_RANGE,
+                    contentRange(start, end, length)));
+
+            return resp;
+        }
+
+        String boundary = Long.toHexString(
+                ThreadLocalRandom.current().nextLong())
+                + Long.toHexString(ThreadLocalRandom.current().nextLong());
+        String partType = HttpHeader.buildContentType(type).value();
+
+        int count = ranges.length / 2;
+        long[] positions = new long[count];
+        long[] lengths = new long[count];
+        byte[][] separators = new byte[count + 1][];
+        for (int i = 0; i < count; i++) {
+            positions[i] = ranges[i * 2];
+            lengths[i] = ranges[i * 2 + 1] - ranges[i * 2];
+            separators[i] = ((0 == i ? "" : "\r\n") + "--" + boundary
+                    + "\r\nContent-Type: " + partType + "\r\nContent-Range: "
+                    + contentRange(ranges[i * 2], ranges[i * 2 + 1], length)
+                    + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        }
+        separators[count] = ("\r\n--" + boundary + "--\r\n")
+                .getBytes(StandardCharsets.ISO_8859_1);
+
+        Content content;
+        if (null == data) {
+            content = new FileContent(file, Type.MULTIPART_BYTERANGES,
+                    positions, lengths, separators);
+        } else {
+            content = new ByteArrayContent(join(data, positions, lengths,
+                    separators), Type.MULTIPART_BYTERANGES);
+        }
+
+        HttpResponse resp = HttpResponse.partialContent(content);
+        resp.headers().put(HttpHeader.from(HttpHeader.Name.CONTENT_TYPE,
+                Type.MULTIPART_BYTERANGES + "; boundary=" + boundary));
+
+        return resp;
+    }
+
+    private static String contentRange(long start, long end, long length) {
+        return "bytes " + start + '-' + (end - 1) + '/' + length;
+    }
+
+    /**
+     * Assemble the multipart body of ranges of in-memory bytes
+     */
+    private static byte[] join(byte[] data, long[] positions, long[] lengths,
+            byte[][] separators) {
+
+        int size = 0;
+        for (int i = 0; i < positions.length; i++) {
+            size += separators[i].length + (int) lengths[i];
+        }
+        size += separators[positions.length].length;
+
+        byte[] body = new byte[size];
+        int offset = 0;
+        for (int i = 0; i <= positions.length; i++) {
+            System.arraycopy(separators[i], 0, body, offset,
+                    separators[i].length);
+            offset += separators[i].length;
+
+            if (i < positions.length) {
+                System.arraycopy(data, (int) positions[i], body, offset,
+                        (int) lengths[i]);
+                offset += (int) lengths[i];
+            }
+        }
+
+        return body;
+    }
+
+    /**
+     * Sort ranges and merge the overlapping or adjacent ones
+     *
+     * @param ranges
+     * @param size the number of bounds in the array
+     * @return the coalesced ranges
+     */
+    private static long[] coalesce(long[] ranges, int size) {
+        int count = size / 2;
+        long[][] sorted = new long[count][];
+        for (int i = 0; i < count; i++) {
+            sorted[i] = new long[] {ranges[i * 2], ranges[i * 2 + 1]};
+        }
+        Arrays.sort(sorted, (a, b) -> Long.compare(a[0], b[0]));
+
+        long[] result = new long[size];
+        int n = 0;
+        for (long[] range : sorted) {
+            if (0 < n && range[0] <= result[n - 1]) {
+                result[n - 1] = Math.max(result[n - 1], range[1]);
+            } else {
+                result[n++] = range[0];
+                result[n++] = range[1];
+            }
+        }
+
+        return n == size ? result : Arrays.copyOf(result, n);
+    }
+
+    /**
+     * Parse a decimal number of a range spec
+     *
+     * @return -1 if absent or invalid, {@link Long#MAX_VALUE} if too large
+     */
+    private static long number(String spec, int from, int to) {
+        if (from == to) {
+            return -1;
+        }
+
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            char c = spec.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value > (Long.MAX_VALUE - 9) / 10 ? Long.MAX_VALUE
+                    : value * 10 + c - '0';
+        }
+
+        return value;
+    }
+}
@@ -0,0 +1,186 @@
+package nn1211.http;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import nn1211.http.HttpResponse.StatusCode;
+
+/**
+ * A request body decoded from the chunked transfer-coding. Chunk-size and
+ * trailer lines are read byte per byte so that the bytes following the body
+ * are never consumed. Invalid framing fails every read with a
+ * {@link MalformedBodyException}, the end of the body being lost.
+ *
+ * @author nn1211
+ *
+ */
+final class ChunkedInputStream extends InputStream {
+
+    /**
+     * Maximum length of a chunk-size line
+     */
+    private static final int MAX_LINE_LENGTH = 1024;
+
+    /**
+     * Maximum size of the trailer section
+     */
+    private static final int MAX_TRAILER_SIZE = 8192;
+
+    private final InputStream source;
+    private final byte[] line = new byte[MAX_LINE_LENGTH];
+
+    /**
+     * Bytes left in the current chunk
+     */
+    private long remaining;
+    private boolean started;
+    private boolean ended;
+    private MalformedBodyException failure;
+
+    /**
+     * Create a new instance decoding a chunked body
+     *
+     * @param source
+     */
+    ChunkedInputStream(InputStream source) {
+        this.source = source;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!nextChunk()) {
+            return -1;
+        }
+
+        int b = source.read();
+        if (-1 == b) {
+            throw new EOFException("Request body ended prematurely");
+        }
+
+        remaining--;
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (0 == len) {
+            return 0;
+        }
+
+        if (!nextChunk()) {
+            return -1;
+        }
+
+        int n = source.read(b, off, (int) Math.min(len, remaining));
+        if (-1 == n) {
+            throw new EOFException("Request body ended prematurely");
+        }
+
+        remaining -= n;
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return ended ? 0 : (int) Math.min(remaining, source.available());
+    }
+
+    @Override
+    public void close() {
+        // The connection stream is owned by the server
+    }
+
+    /**
+     * Move to the next chunk once the current one is consumed
+     *
+     * @return {@code false} at the end of the body
+     * @throws IOException
+     */
+    private boolean nextChunk() throws IOException {
+        if (null != failure) {
+            throw failure;
+        }
+
+        if (ended) {
+            return false;
+        }
+
+        if (0 < remaining) {
+            return true;
+        }
+
+        if (started && 0 != readLine()) { // CRLF ending the previous chunk
+            throw fail(StatusCode.BAD_REQUEST, "Invalid chunked body");
+        }
+        started = true;
+
+        int length = readLine();
+        remaining = 0;
+        for (int i = 0; i < length; i++) {
+            int digit = Character.digit(line[i], 16);
+            if (-1 == digit) {
+                if (59 == line[i] && 0 < i) { // Chunk extensions
+                    break;
+                }
+                throw fail(StatusCode.BAD_REQUEST, "Invalid chunk size");
+            }
+
+            if (remaining > (Long.MAX_VALUE >> 4)) {
+                throw fail(StatusCode.PAYLOAD_TOO_LARGE,
+                        "Chunk size too large");
+            }
+            remaining = remaining << 4 | digit;
+        }
+
+        if (0 == length) {
+            throw fail(StatusCode.BAD_REQUEST, "Invalid chunk size");
+        }
+
+        if (0 == remaining) { // Last chunk, skip the trailer section
+            int trailerSize = 0;
+            while (0 != (length = readLine())) {
+                if ((trailerSize += length) > MAX_TRAILER_SIZE) {
+                    throw fail(StatusCode.PAYLOAD_TOO_LARGE,
+                            "Trailer section too large");
+                }
+            }
+
+            ended = true;
+            return false;
+        }
+
+        return true;
+    }
+
+    private MalformedBodyException fail(StatusCode statusCode,
+            String message) {
+
+        failure = new MalformedBodyException(statusCode, message);
+        return failure;
+    }
+
+    /**
+     * Read a line ending with CRLF
+     *
+     * @return the length of the line, without CRLF
+     * @throws IOException
+     */
+    private int readLine() throws IOException {
+        int length = 0;
+        int b;
+        while (10 != (b = source.read())) {
+            if (-1 == b) {
+                throw new EOFException("Request body ended prematurely");
+            }
+
+            if (line.length == length) {
+                throw fail(StatusCode.BAD_REQUEST, "Chunk line too long");
+            }
+
+            line[length++] = (byte) b;
+        }
+
+        return 0 < length && 13 == line[length - 1] ? length - 1 : length;
+    }
+}
@@ -0,0 +1,153 @@
+package nn1211.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The content codings of responses: negotiation from the Accept-Encoding
+ * header of a request and compression with {@link java.util.zip}
+ *
+ * @author nn1211
+ *
+ */
+final class Compression {
+
+    /**
+     * The gzip content coding
+     */
+    static final String GZIP = "gzip";
+
+    /**
+     * The deflate content coding, a zlib stream
+     */
+    static final String DEFLATE = "deflate";
+
+    /**
+     * Maximum size of a content compressed on the fly, larger ones are only
+     * sent compressed from a precompressed sibling file
+     */
+    static final long MAX_SIZE = 8 * 1024 * 1024;
+
+    private Compression() {
+    }
+
+    /**
+     * Choose the content coding of a response from the Accept-Encoding
+     * header of its request, gzip being preferred over deflate for equal
+     * weights
+     *
+     * @param req
+     * @return null for the identity coding, {@link #GZIP} or {@link #DEFLATE}
+     */
+    static String negotiate(HttpRequest req) {
+        HttpHeader acceptEncoding = req.headers()
+                .get(HttpHeader.Name.ACCEPT_ENCODING);
+        if (null == acceptEncoding) {
+            return null;
+        }
+
+        double gzip = -1;
+        double deflate = -1;
+        double any = -1;
+        for (String element : acceptEncoding.value().split(",")) {
+            int semicolon = element.indexOf(';');
+            String coding = (-1 == semicolon ? element
+                    : element.substring(0, semicolon)).trim();
+            double q = -1 == semicolon ? 1
+                    : weight(element.substring(semicolon + 1));
+
+            if (GZIP.equalsIgnoreCase(coding)
+                    || "x-gzip".equalsIgnoreCase(coding)) {
+                gzip = Math.max(gzip, q);
+            } else if (DEFLATE.equalsIgnoreCase(coding)) {
+                deflate = Math.max(deflate, q);
+            } else if ("*".equals(coding)) {
+                any = q;
+            }
+        }
+
+        // Codings not listed are accepted with the weight of *, if any
+        if (-1 == gzip) {
+            gzip = any;
+        }
+        if (-1 == deflate) {
+            deflate = any;
+        }
+
+        if (gzip > 0 && gzip >= deflate) {
+            return GZIP;
+        }
+
+        return deflate > 0 ? DEFLATE : null;
+    }
+
+    /**
+     * Determine if a content type benefits from compression
+     *
+     * @param type
+     * @return {@code true} for textual types
+     */
+    static boolean isCompressible(Content.Type type) {
+        switch (type) {
+            case CSS:
+            case HTML:
+            case JS:
+            case JSON:
+            case SVG:
+            case TEXT:
+            case XHTML:
+            case XML:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Compress bytes with the best compression, the result being cached
+     *
+     * @param data
+     * @param coding {@link #GZIP} or {@link #DEFLATE}
+     * @return the compressed bytes
+     * @throws IOException
+     */
+    static byte[] compress(byte[] data, String coding) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(
+                Math.max(64, data.length / 4));
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION,
+                GZIP.equals(coding));
+        try (OutputStream out = GZIP.equals(coding)
+                ? new GZIPOutputStream(compressed) {
+                    {
+                        def.end();
+                        def = deflater;
+                    }
+                }
+                : new DeflaterOutputStream(compressed, deflater)) {
+            out.write(data);
+        } finally {
+            deflater.end();
+        }
+
+        return compressed.toByteArray();
+    }
+
+    private static double weight(String params) {
+        for (String param : params.split(";")) {
+            param = param.trim();
+            if (param.startsWith("q=") || param.startsWith("Q=")) {
+                try {
+                    return Double.parseDouble(param.substring(2));
+                } catch (NumberFormatException ex) {
+                    return 0;
+                }
+            }
+        }
+
+        return 1;
+    }
+}
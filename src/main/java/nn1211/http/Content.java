@@ -1,6 +1,15 @@
 package nn1211.http;
 
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -47,6 +56,43 @@ public interface Content {
         return new ByteArrayContent(data, type);
     }
 
+    /**
+     * Build a content backed by a file, sent without being loaded into memory
+     *
+     * @param path
+     * @param type
+     * @return a {@link FileContent} object
+     * @throws IOException if the size of the file can't be read
+     */
+    static Content file(Path path, Type type) throws IOException {
+        return new FileContent(path, type, Files.size(path));
+    }
+
+    /**
+     * Build a content backed by the remaining bytes of a buffer, such as a
+     * mapped file or a direct buffer, sent without being copied
+     *
+     * @param type
+     * @param buffer
+     * @return a {@link BufferContent} object
+     */
+    static Content buffer(Type type, ByteBuffer buffer) {
+        return new BufferContent(buffer, type);
+    }
+
+    /**
+     * Build a content written by a producer while it is sent, of unknown
+     * length, sent with the chunked transfer coding to HTTP/1.1 clients and
+     * delimited by closing the connection otherwise
+     *
+     * @param type
+     * @param producer
+     * @return a {@link StreamContent} object
+     */
+    static Content stream(Type type, Producer producer) {
+        return new StreamContent(type, producer);
+    }
+
     /**
      * Get this content data as a byte array
      *
@@ -54,6 +100,15 @@ public interface Content {
      */
     byte[] toBytes();
 
+    /**
+     * Get the length of this content
+     *
+     * @return the length of this content, in bytes, or -1 if unknown
+     */
+    default long length() {
+        return toBytes().length;
+    }
+
     /**
      * Get the type of this content
      *
@@ -70,6 +125,53 @@ public interface Content {
         return null;
     }
 
+    /**
+     * Graceful cast to a {@link FileContent} object
+     *
+     * @return null or a {@link FileContent} object
+     */
+    default FileContent asFileContent() {
+        return null;
+    }
+
+    /**
+     * Graceful cast to a {@link BufferContent} object
+     *
+     * @return null or a {@link BufferContent} object
+     */
+    default BufferContent asBufferContent() {
+        return null;
+    }
+
+    /**
+     * Graceful cast to a {@link StreamContent} object
+     *
+     * @return null or a {@link StreamContent} object
+     */
+    default StreamContent asStreamContent() {
+        return null;
+    }
+
+    /**
+     * Writes the bytes of a {@link StreamContent}
+     *
+     * @author nn1211
+     *
+     */
+    @FunctionalInterface
+    interface Producer {
+
+        /**
+         * Write the bytes of a content. Bytes are sent in chunks as they are
+         * written, flushing sends the bytes written so far.
+         *
+         * @param out the body of the response, closed by the server
+         * @throws IOException if the content can't be produced, or the
+         * connection is closed
+         */
+        void writeTo(OutputStream out) throws IOException;
+    }
+
     /**
      * Supported types of a {@link Content}
      *
@@ -77,14 +179,16 @@ public interface Content {
      *
      */
     public enum Type {
-        CSS("text/css"), GIF("image/gif"), GZIP("application/gzip"), HTML("text/html"),
-        ICON("image/x-icon"), JAR("application/java-archive"),
+        CSS("text/css"), GIF("image/gif"), GZIP("application/gzip"),
+        HTML("text/html"), ICON("image/x-icon"), JAR("application/java-archive"),
         JPEG("image/jpeg"), JS("text/javascript"), JSON("application/json"),
-        PNG("image/png"), SVG("image/svg+xml"), TEXT("text/plain"),
+        MULTIPART_BYTERANGES("multipart/byteranges"), PNG("image/png"),
+        SVG("image/svg+xml"), TEXT("text/plain"),
         XHTML("application/xhtml+xml"), XML("application/xml"),
         ZIP("application/zip");
 
-        private static final Map<String, Type> SUPPORTED_TYPES = new HashMap<>();
+        private static final Map<String, Type> SUPPORTED_TYPES
+                = new HashMap<>();
 
         static {
             SUPPORTED_TYPES.put("css", CSS);
@@ -243,4 +347,309 @@ public interface Content {
         }
     }
 
+    /**
+     * A content backed by regions of a file, such as the whole file or the
+     * byte ranges of a partial response, each region being preceded by
+     * optional separator bytes and the last one followed by them. Servers
+     * transfer the regions from the file to the connection without loading
+     * them into memory.
+     *
+     * @author nn1211
+     *
+     */
+    public static class FileContent implements Content {
+
+        private final Path path;
+        private final Type type;
+
+        private final long[] positions;
+        private final long[] lengths;
+        private final byte[][] separators;
+        private final long length;
+
+        /**
+         * Create new instance with a whole file, a content type and the length
+         * of the file
+         *
+         * @param path
+         * @param type
+         * @param length
+         */
+        public FileContent(Path path, Type type, long length) {
+            this(path, type, 0, length);
+        }
+
+        /**
+         * Create new instance with a region of a file and a content type
+         *
+         * @param path
+         * @param type
+         * @param position the position of the region in the file
+         * @param length the length of the region
+         */
+        public FileContent(Path path, Type type, long position, long length) {
+            this(path, type, new long[] {position}, new long[] {length},
+                    new byte[2][]);
+        }
+
+        /**
+         * Create new instance with regions of a file interleaved with
+         * separator bytes, and a content type
+         *
+         * @param path
+         * @param type
+         * @param positions the positions of the regions in the file
+         * @param lengths the lengths of the regions
+         * @param separators the bytes preceding each region, then the bytes
+         * following the last one, null for none
+         * @throws IllegalArgumentException if the arrays don't match
+         */
+        public FileContent(Path path, Type type, long[] positions,
+                long[] lengths, byte[][] separators)
+                throws IllegalArgumentException {
+
+            if (positions.length != lengths.length
+                    || separators.length != positions.length + 1) {
+                throw new IllegalArgumentException(
+                        "One separator more than regions is required");
+            }
+
+            this.path = path;
+            this.type = type;
+            this.positions = positions;
+            this.lengths = lengths;
+            this.separators = separators;
+
+            long total = 0;
+            for (int i = 0; i < lengths.length; i++) {
+                total += lengths[i];
+            }
+            for (byte[] separator : separators) {
+                total += null == separator ? 0 : separator.length;
+            }
+            length = total;
+        }
+
+        /**
+         * Get the file of this content
+         *
+         * @return the path of the file
+         */
+        public final Path path() {
+            return path;
+        }
+
+        /**
+         * Get the number of file regions of this content
+         *
+         * @return the number of regions
+         */
+        public final int regions() {
+            return positions.length;
+        }
+
+        /**
+         * Get the position of a region in the file
+         *
+         * @param region
+         * @return the position of the region
+         */
+        public final long position(int region) {
+            return positions[region];
+        }
+
+        /**
+         * Get the length of a region
+         *
+         * @param region
+         * @return the length of the region
+         */
+        public final long length(int region) {
+            return lengths[region];
+        }
+
+        /**
+         * Get the bytes preceding a region, or following the last one
+         *
+         * @param index a region, or the number of regions
+         * @return null or the separator bytes
+         */
+        public final byte[] separator(int index) {
+            return separators[index];
+        }
+
+        @Override
+        public Type type() {
+            return type;
+        }
+
+        @Override
+        public long length() {
+            return length;
+        }
+
+        /**
+         * Read the whole content, only meant for small files
+         */
+        @Override
+        public byte[] toBytes() {
+            ByteBuffer data = ByteBuffer.allocate(Math.toIntExact(length));
+            try (FileChannel file = FileChannel.open(path)) {
+                for (int i = 0; i <= positions.length; i++) {
+                    if (null != separators[i]) {
+                        data.put(separators[i]);
+                    }
+
+                    if (i < positions.length) {
+                        data.limit(data.position() + (int) lengths[i]);
+                        long position = positions[i];
+                        while (data.hasRemaining()) {
+                            int n = file.read(data, position);
+                            if (-1 == n) {
+                                throw new EOFException("File truncated");
+                            }
+                            position += n;
+                        }
+                        data.limit(data.capacity());
+                    }
+                }
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+
+            return data.array();
+        }
+
+        @Override
+        public FileContent asFileContent() {
+            return this;
+        }
+    }
+
+    /**
+     * A content backed by a read-only buffer, typically outside of the heap:
+     * a mapped file or a direct buffer. Servers write it to the connection as
+     * is, so its bytes are neither copied to the heap nor from it.
+     *
+     * @author nn1211
+     *
+     */
+    public static class BufferContent implements Content {
+
+        private final ByteBuffer buffer;
+        private final Type type;
+
+        /**
+         * Create new instance with the remaining bytes of a buffer and a
+         * content type
+         *
+         * @param buffer
+         * @param type
+         */
+        public BufferContent(ByteBuffer buffer, Type type) {
+            this.buffer = buffer.slice().asReadOnlyBuffer();
+            this.type = type;
+        }
+
+        /**
+         * Get the bytes of this content, in a buffer of their own so that
+         * concurrent responses don't share a position
+         *
+         * @return a read-only view of the bytes of this content
+         */
+        public final ByteBuffer buffer() {
+            return buffer.duplicate();
+        }
+
+        @Override
+        public Type type() {
+            return type;
+        }
+
+        @Override
+        public long length() {
+            return buffer.capacity();
+        }
+
+        /**
+         * Copy the whole content to the heap, only meant for small contents
+         */
+        @Override
+        public byte[] toBytes() {
+            byte[] data = new byte[buffer.capacity()];
+            buffer.duplicate().get(data);
+
+            return data;
+        }
+
+        @Override
+        public BufferContent asBufferContent() {
+            return this;
+        }
+    }
+
+    /**
+     * A content written by a {@link Producer} while it is sent, so that large
+     * generated contents are sent in constant memory, the first bytes being
+     * sent before the last ones are produced
+     *
+     * @author nn1211
+     *
+     */
+    public static class StreamContent implements Content {
+
+        private final Type type;
+        private final Producer producer;
+
+        /**
+         * Create new instance with a content type and a producer
+         *
+         * @param type
+         * @param producer
+         */
+        public StreamContent(Type type, Producer producer) {
+            this.type = type;
+            this.producer = producer;
+        }
+
+        /**
+         * Get the producer of this content
+         *
+         * @return the producer of this content
+         */
+        public final Producer producer() {
+            return producer;
+        }
+
+        @Override
+        public Type type() {
+            return type;
+        }
+
+        @Override
+        public long length() {
+            return -1;
+        }
+
+        /**
+         * Produce the whole content in memory, only meant for small contents
+         */
+        @Override
+        public byte[] toBytes() {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try {
+                producer.writeTo(out);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+
+            return out.toByteArray();
+        }
+
+        @Override
+        public StreamContent asStreamContent() {
+            return this;
+        }
+    }
+
 }
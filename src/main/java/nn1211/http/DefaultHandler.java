@@ -6,51 +6,382 @@ import java.io.IOException;
 import java.nio.file.Files;
 
 import static nn1211.http.HttpRequest.Method.GET;
+import static nn1211.http.HttpRequest.Method.HEAD;
+import static nn1211.http.HttpRequest.Method.OPTIONS;
 import static nn1211.http.HttpResponse.*;
 import static nn1211.http.Content.*;
 
 /**
- * Default handler for all HTTP request
+ * Default handler for all HTTP request, serving the resource files of the
+ * current server through its {@link FileCache}, if any. Responses carry an
+ * ETag and a Last-Modified header, and conditional requests whose validators
+ * still match are answered with a 304 response without reading the file.
+ * Range requests are answered with the requested parts only (see
+ * {@link ByteRanges}). Textual files are sent compressed to clients accepting
+ * gzip or deflate, from a precompressed {@code .gz} sibling file if any or
+ * compressed once and cached (see {@link Compression}), never compressed
+ * without a {@link FileCache} to keep the result. Error responses are the
+ * shared {@link FrozenResponse#error(StatusCode)} ones.
  *
  * @author nn1211
  *
  */
 public class DefaultHandler implements Handler {
 
+    private static final HttpHeader ACCEPT_RANGES = HttpHeader
+            .from(HttpHeader.Name.ACCEPT_RANGES, "bytes");
+
+    private static final HttpHeader VARY = HttpHeader
+            .from(HttpHeader.Name.VARY, "Accept-Encoding");
+
     @Override
     public HttpResponse handle(HttpRequest req) throws IOException {
-        if (GET != req.method()) // DefaultHandler only support GET
-        {
-            return methodNotAllowed();
+        if (OPTIONS == req.method()) {
+            return allow(GET, HEAD, OPTIONS);
         }
 
-        File file = new File(HttpServer.current().resourcePath() + req.uri());
-        if (!file.exists()) {
-            return notFound();
+        if (GET != req.method() && HEAD != req.method()) {
+            // DefaultHandler only support GET/HEAD
+            return FrozenResponse.error(StatusCode.METHOD_NOT_ALLOWED);
+        }
+
+        HttpServer server = HttpServer.current();
+        String uri = req.uri();
+        int query = uri.indexOf('?');
+        if (-1 != query) {
+            uri = uri.substring(0, query);
+        }
+        String path = server.resourcePath() + uri;
+
+        FileCache cache = server.fileCache();
+        FileCache.Entry entry = null == cache ? null : cache.get(path);
+        if (null != entry) {
+            Content content = entry.content();
+            Type contentType = content.type();
+            HttpResponse resp = compressed(req, server, path, entry.file(),
+                    contentType, content.length(), entry.lastModified(),
+                    entry);
+            if (null != resp) {
+                return resp;
+            }
+
+            if (isNotModified(req, entry.etag(), entry.lastModified())) {
+                return withValidators(notModified(), contentType,
+                        entry.etag(), entry.lastModifiedDate());
+            }
+
+            long[] ranges = ranges(req, content.length(), entry.etag(),
+                    entry.lastModified());
+            if (null != ranges) {
+                // Ranges of a content out of the heap are sent from the file
+                boolean inHeap = null == content.asBufferContent();
+                return withValidators(0 == ranges.length
+                        ? rangeNotSatisfiable(content.length())
+                        : ByteRanges.respond(ranges, content.length(),
+                                contentType, entry.file().toPath(),
+                                inHeap ? content.toBytes() : null),
+                        contentType, entry.etag(), entry.lastModifiedDate());
+            }
+
+            return withValidators(HEAD == req.method()
+                    ? ok(contentType, content.length())
+                    : ok(content), contentType, entry.etag(),
+                    entry.lastModifiedDate());
         }
 
+        File file;
         Type contentType;
-        if (file.isDirectory()) { // Serve index.html for '/' and folder paths
-            File indexFile = new File(file, "index.html");
-            if (!indexFile.exists()) {
-                return notFound();
+        long length;
+        long lastModified;
+        ResourceIndex index = server.resourceIndex();
+        ResourceIndex.Resource resource = null == index ? null
+                : index.get(uri);
+        if (null != resource && index.watched()) {
+            // Resolved when the server started, dropped once changed
+            file = resource.file();
+            contentType = resource.type();
+            length = resource.length();
+            lastModified = resource.lastModified();
+        } else if (null != resource && resource.file().isFile()) {
+            file = resource.file();
+            contentType = resource.type();
+            length = file.length();
+            lastModified = file.lastModified();
+        } else {
+            file = new File(path);
+            if (!file.exists()) {
+                return FrozenResponse.error(StatusCode.NOT_FOUND);
+            }
+
+            // Serve index.html for '/' and folder paths
+            if (file.isDirectory()) {
+                File indexFile = new File(file, "index.html");
+                if (!indexFile.exists()) {
+                    return FrozenResponse.error(StatusCode.NOT_FOUND);
+                }
+
+                contentType = Type.HTML;
+                file = indexFile;
+            } else {
+                contentType = Type.from(uri);
+            }
+
+            if (null == contentType) {
+                return FrozenResponse
+                        .error(StatusCode.UNSUPPORTED_MEDIA_TYPE);
             }
 
-            contentType = Type.HTML;
-            file = indexFile;
+            if (!file.canRead()) {
+                return FrozenResponse.error(StatusCode.FORBIDDEN);
+            }
+
+            length = file.length();
+            lastModified = file.lastModified();
+        }
+
+        HttpResponse resp = compressed(req, server, path, file, contentType,
+                length, lastModified, null);
+        if (null != resp) {
+            return resp;
+        }
+
+        HttpHeader etag = HttpHeader.buildETag(length, lastModified);
+        HttpHeader lastModifiedDate = HttpHeader
+                .buildLastModified(lastModified);
+        if (isNotModified(req, etag, lastModified)) {
+            return withValidators(notModified(), contentType, etag,
+                    lastModifiedDate);
+        }
+
+        if (HEAD == req.method()) { // Don't read the file for HEAD requests
+            return withValidators(ok(contentType, length), contentType, etag,
+                    lastModifiedDate);
+        }
+
+        long[] ranges = ranges(req, length, etag, lastModified);
+        if (null != ranges) { // Only the requested parts are read
+            return withValidators(0 == ranges.length
+                    ? rangeNotSatisfiable(length)
+                    : ByteRanges.respond(ranges, length, contentType,
+                            file.toPath(), null), contentType, etag,
+                    lastModifiedDate);
+        }
+
+        if (null != cache) {
+            entry = cache.put(path, file, contentType);
+            if (null != entry) {
+                return withValidators(ok(entry.content()), contentType,
+                        entry.etag(), entry.lastModifiedDate());
+            }
+        }
+
+        // Sent from the file, without loading it into memory
+        return withValidators(ok(file(file.toPath(), contentType)),
+                contentType, etag, lastModifiedDate);
+    }
+
+    /**
+     * Answer a request with the compressed variant of a file, if the client
+     * accepts a content coding and the file is worth compressing. Range
+     * requests are answered from the file as is. HEAD requests get the
+     * variant as GET requests do, so that both carry the same headers.
+     *
+     * @param req
+     * @param server
+     * @param path the requested path
+     * @param file the file served for the path
+     * @param type
+     * @param length the length of the file
+     * @param lastModified the modification time of the file
+     * @param identity null or the cached content of the file
+     * @return null to send the file as is
+     * @throws IOException
+     */
+    private static HttpResponse compressed(HttpRequest req, HttpServer server,
+            String path, File file, Type type, long length, long lastModified,
+            FileCache.Entry identity) throws IOException {
+
+        if (!Compression.isCompressible(type)
+                || length < server.compressionMinSize()
+                || null != req.headers().get(HttpHeader.Name.RANGE)) {
+            return null;
+        }
+
+        String coding = Compression.negotiate(req);
+        if (null == coding) {
+            return null;
+        }
+
+        FileCache cache = server.fileCache();
+        String key = path + ';' + coding;
+        FileCache.Entry variant = variant(cache, key, file, type, length,
+                lastModified, coding, identity);
+        if (null == variant || null == variant.coding()) {
+            return null;
+        }
+
+        HttpResponse resp;
+        if (isNotModified(req, variant.etag(), variant.lastModified())) {
+            resp = notModified();
         } else {
-            contentType = Type.from(req.uri());
+            Content content = variant.content();
+            resp = HEAD == req.method() ? ok(type, content.length())
+                    : ok(content);
+            resp.headers().put(HttpHeader.from(
+                    HttpHeader.Name.CONTENT_ENCODING, coding));
+        }
+
+        resp.headers().put(variant.etag()).put(variant.lastModifiedDate())
+                .put(VARY);
+        return withCacheControl(resp);
+    }
+
+    /**
+     * Get the variant of a file in a content coding, from the cache, from a
+     * precompressed sibling file or by compressing the file. A file is only
+     * compressed if the result is cached, so that it is compressed once.
+     *
+     * @param cache null or the cache of the resource files
+     * @param key the requested path and the content coding
+     * @param file
+     * @param type
+     * @param length
+     * @param lastModified
+     * @param coding
+     * @param identity null or the cached content of the file
+     * @return null if the file can't be compressed once and cached, an entry
+     * without coding if compression doesn't make it smaller
+     * @throws IOException
+     */
+    private static FileCache.Entry variant(FileCache cache, String key,
+            File file, Type type, long length, long lastModified,
+            String coding, FileCache.Entry identity) throws IOException {
+
+        FileCache.Entry variant = null == cache ? null : cache.get(key);
+        if (null != variant) {
+            return variant;
+        }
+
+        File sibling = new File(file.getPath() + ".gz");
+        long siblingModified = sibling.lastModified(); // 0 if missing
+        if (Compression.GZIP.equals(coding) && siblingModified >= lastModified
+                && sibling.isFile() && sibling.canRead()) {
+            variant = null == cache ? null
+                    : cache.put(key, sibling, type, coding);
+            if (null != variant) {
+                return variant;
+            }
+
+            // Sent from the file, without loading it into memory
+            return new FileCache.Entry(key, sibling, sibling.length(),
+                    siblingModified, file(sibling.toPath(), type), coding,
+                    System.currentTimeMillis());
+        }
+
+        if (null == cache || length > Compression.MAX_SIZE
+                || !cache.accepts(length)) {
+            return null; // Sent as is rather than compressed every time
+        }
+
+        byte[] data = null != identity ? identity.content().toBytes()
+                : Files.readAllBytes(file.toPath());
+        byte[] compressed = Compression.compress(data, coding);
+        if (compressed.length >= data.length
+                || !cache.accepts(compressed.length)) {
+            // Cached as is, so that the file isn't compressed again
+            return cache.put(key, file, data.length, lastModified,
+                    build(type, data), null);
+        }
+
+        return cache.put(key, file, data.length, lastModified,
+                build(type, compressed), coding);
+    }
+
+    /**
+     * Evaluate the conditional headers of a request against the validators
+     * of the requested file. If-None-Match takes precedence over
+     * If-Modified-Since.
+     *
+     * @param req
+     * @param etag
+     * @param lastModified
+     * @return {@code true} if the client already has the current version
+     */
+    private static boolean isNotModified(HttpRequest req, HttpHeader etag,
+            long lastModified) {
+
+        HttpHeader ifNoneMatch = req.headers()
+                .get(HttpHeader.Name.IF_NONE_MATCH);
+        if (null != ifNoneMatch) {
+            for (String tag : ifNoneMatch.value().split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/")) { // Weak comparison
+                    tag = tag.substring(2);
+                }
+
+                if ("*".equals(tag) || etag.value().equals(tag)) {
+                    return true;
+                }
+            }
+
+            return false;
         }
 
-        if (null == contentType) {
-            return unsupportedMediaType();
+        HttpHeader ifModifiedSince = req.headers()
+                .get(HttpHeader.Name.IF_MODIFIED_SINCE);
+        if (null == ifModifiedSince) {
+            return false;
         }
 
-        if (!file.canRead()) {
-            return forbidden();
+        // HTTP dates have a one second resolution
+        long since = HttpHeader.parseDate(ifModifiedSince.value());
+        return -1 != since && lastModified / 1000 <= since / 1000;
+    }
+
+    /**
+     * Get the ranges a GET request asks for, if its If-Range header, if any,
+     * matches the current version of the requested file
+     *
+     * @param req
+     * @param length
+     * @param etag
+     * @param lastModified
+     * @return null to send the whole file, the bounds of the ranges (see
+     * {@link ByteRanges#parse(String, long)}) otherwise
+     */
+    private static long[] ranges(HttpRequest req, long length,
+            HttpHeader etag, long lastModified) {
+
+        HttpHeader range = req.headers().get(HttpHeader.Name.RANGE);
+        if (GET != req.method() || null == range
+                || !ByteRanges.applies(req, etag, lastModified)) {
+            return null;
         }
 
-        return ok(build(contentType, Files.readAllBytes(file.toPath())));
+        return ByteRanges.parse(range.value(), length);
+    }
+
+    private static HttpResponse withValidators(HttpResponse resp, Type type,
+            HttpHeader etag, HttpHeader lastModifiedDate) {
+        resp.headers().put(etag).put(lastModifiedDate).put(ACCEPT_RANGES);
+        if (Compression.isCompressible(type)) {
+            resp.headers().put(VARY); // Sent compressed to other clients
+        }
+        return withCacheControl(resp);
+    }
+
+    /**
+     * Add the Cache-Control header of the current server, if any
+     *
+     * @param resp
+     * @return the response
+     */
+    private static HttpResponse withCacheControl(HttpResponse resp) {
+        HttpHeader cacheControl = HttpServer.current().cacheControl();
+        if (null != cacheControl) {
+            resp.headers().put(cacheControl);
+        }
+        return resp;
     }
 
 }
@@ -0,0 +1,718 @@
+package nn1211.http;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * An in-memory cache of the files served by {@link DefaultHandler}, bounded by
+ * the total size of the cached files and evicting the least recently used ones
+ * first. Entries are keyed by the requested path, so a hit costs neither a
+ * file system lookup nor a read. A cached file is checked for modification at
+ * most once per {@link #REVALIDATE_INTERVAL}, unless its directory is watched
+ * (see {@link #watch(Path)}). Compressed variants of a file are cached beside
+ * it under their own key.
+ * <p>
+ * Contents larger than {@link #OFF_HEAP_THRESHOLD} are kept out of the heap,
+ * within their own budget, so that the amount of cached content doesn't weigh
+ * on garbage collections: files are mapped into memory, and derived contents
+ * are copied into direct buffers. Evicted mappings are released once
+ * collected. As a mapped file may change under the responses sending it,
+ * files should be replaced by moving new versions in place rather than being
+ * rewritten.
+ *
+ * @author nn1211
+ *
+ */
+public final class FileCache {
+
+    /**
+     * Default maximum total size of the cached files
+     */
+    public static final long DEFAULT_CAPACITY = 64L * 1024 * 1024;
+
+    /**
+     * Default maximum size of a cached file
+     */
+    public static final long DEFAULT_MAX_ENTRY_SIZE = 1024 * 1024;
+
+    /**
+     * Default maximum total size of the contents cached out of the heap
+     */
+    public static final long DEFAULT_OFF_HEAP_CAPACITY = 512L * 1024 * 1024;
+
+    /**
+     * Default maximum size of a content cached out of the heap
+     */
+    public static final long DEFAULT_MAX_OFF_HEAP_ENTRY_SIZE
+            = 16L * 1024 * 1024;
+
+    /**
+     * Size above which contents are cached out of the heap, if allowed. Below
+     * it, a mapping would cost more than it saves.
+     */
+    public static final long OFF_HEAP_THRESHOLD = 16 * 1024;
+
+    /**
+     * Minimum interval, in milliseconds, between two checks of a cached file
+     * for modification
+     */
+    public static final long REVALIDATE_INTERVAL = 1000;
+
+    /**
+     * Estimated memory used by an entry besides the file content
+     */
+    private static final int ENTRY_OVERHEAD = 128;
+
+    private final long capacity;
+    private final long maxEntrySize;
+    private final long offHeapCapacity;
+    private final long maxOffHeapEntrySize;
+
+    private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f,
+            true);
+    private long weight;
+    private long offHeapWeight;
+
+    /**
+     * The watch service of the resource directory, if watched
+     */
+    private volatile WatchService watchService;
+
+    /**
+     * Notified of the changes seen by the watch service
+     */
+    private final List<Consumer<Path>> listeners
+            = new CopyOnWriteArrayList<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * A cached file
+     *
+     * @author nn1211
+     *
+     */
+    public static final class Entry {
+
+        private final String key;
+        private final File file;
+        private final Path path;
+        private final Content content;
+        private final boolean offHeap;
+        private final String coding;
+        private final long length;
+        private final long lastModified;
+        private final HttpHeader etag;
+        private final HttpHeader lastModifiedDate;
+
+        private volatile long checked;
+
+        /**
+         * Create an entry
+         *
+         * @param key the requested path
+         * @param file the file the content was loaded from
+         * @param length the length of the file when loaded
+         * @param lastModified the modification time of the file when loaded
+         * @param content the content of the file, compressed or not
+         * @param coding null if the content is the file as is, its content
+         * coding otherwise
+         * @param checked
+         */
+        Entry(String key, File file, long length, long lastModified,
+                Content content, String coding, long checked) {
+            this.key = key;
+            this.file = file;
+            this.length = length;
+            path = file.toPath().toAbsolutePath().normalize();
+            offHeap = null != content.asBufferContent();
+            this.lastModified = lastModified;
+            this.content = content;
+            this.coding = coding;
+            this.checked = checked;
+
+            etag = HttpHeader.buildETag(length, lastModified, coding);
+            lastModifiedDate = HttpHeader.buildLastModified(lastModified);
+        }
+
+        /**
+         * Get the file this entry was loaded from
+         *
+         * @return the cached file
+         */
+        public File file() {
+            return file;
+        }
+
+        /**
+         * Get the content of the cached file
+         *
+         * @return the content of the cached file
+         */
+        public Content content() {
+            return content;
+        }
+
+        /**
+         * Get the content coding of the cached content
+         *
+         * @return null if the content is the file as is, gzip or deflate
+         * otherwise
+         */
+        public String coding() {
+            return coding;
+        }
+
+        /**
+         * Get the time the cached file was last modified
+         *
+         * @return the modification time of the file, in milliseconds
+         */
+        public long lastModified() {
+            return lastModified;
+        }
+
+        /**
+         * Get the ETag header of the cached file
+         *
+         * @return the ETag header of the cached file
+         */
+        public HttpHeader etag() {
+            return etag;
+        }
+
+        /**
+         * Get the Last-Modified header of the cached file
+         *
+         * @return the Last-Modified header of the cached file
+         */
+        public HttpHeader lastModifiedDate() {
+            return lastModifiedDate;
+        }
+
+        private long weight() {
+            return (offHeap ? 0 : content.length()) + key.length()
+                    + ENTRY_OVERHEAD;
+        }
+
+        private long offHeapWeight() {
+            return offHeap ? content.length() : 0;
+        }
+    }
+
+    /**
+     * Create a cache with the default limits
+     */
+    public FileCache() {
+        this(DEFAULT_CAPACITY, DEFAULT_MAX_ENTRY_SIZE,
+                DEFAULT_OFF_HEAP_CAPACITY, DEFAULT_MAX_OFF_HEAP_ENTRY_SIZE);
+    }
+
+    /**
+     * Create a cache with given limits, keeping every content in the heap
+     *
+     * @param capacity the maximum total size of the cached files, in bytes
+     * @param maxEntrySize the maximum size of a cached file, in bytes
+     * @throws IllegalArgumentException if a limit is negative
+     */
+    public FileCache(long capacity, long maxEntrySize)
+            throws IllegalArgumentException {
+        this(capacity, maxEntrySize, 0, 0);
+    }
+
+    /**
+     * Create a cache with given limits
+     *
+     * @param capacity the maximum total size of the contents cached in the
+     * heap, in bytes
+     * @param maxEntrySize the maximum size of a content cached in the heap, in
+     * bytes
+     * @param offHeapCapacity the maximum total size of the contents cached out
+     * of the heap, in bytes, 0 to keep every content in the heap
+     * @param maxOffHeapEntrySize the maximum size of a content cached out of
+     * the heap, in bytes
+     * @throws IllegalArgumentException if a limit is negative
+     */
+    public FileCache(long capacity, long maxEntrySize, long offHeapCapacity,
+            long maxOffHeapEntrySize) throws IllegalArgumentException {
+
+        if (capacity < 0 || maxEntrySize < 0 || offHeapCapacity < 0
+                || maxOffHeapEntrySize < 0) {
+            throw new IllegalArgumentException("Limits must not be negative");
+        }
+
+        this.capacity = capacity;
+        this.maxEntrySize = Math.min(maxEntrySize, capacity);
+        this.offHeapCapacity = offHeapCapacity;
+        this.maxOffHeapEntrySize = Math.min(maxOffHeapEntrySize,
+                offHeapCapacity);
+    }
+
+    /**
+     * Get the cached file of a requested path
+     *
+     * @param key the requested path
+     * @return null if the path is not cached or the file was modified
+     */
+    public Entry get(String key) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+        }
+
+        if (null != entry && !isFresh(entry)) {
+            invalidate(key);
+            entry = null;
+        }
+
+        if (null == entry) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+
+        return entry;
+    }
+
+    /**
+     * Load a file and cache it for a requested path, unless it is too large
+     *
+     * @param key the requested path
+     * @param file the file served for the path
+     * @param type the content type of the file
+     * @return null if the file is too large to be cached, the new entry
+     * otherwise, cached only if the file didn't change meanwhile
+     * @throws IOException
+     */
+    public Entry put(String key, File file, Content.Type type)
+            throws IOException {
+        return put(key, file, type, null);
+    }
+
+    /**
+     * Load a file, mapping it into memory if large enough, and cache it for a
+     * requested path, unless it is too large
+     *
+     * @param key the requested path, and the variant if any
+     * @param file the file served for the path
+     * @param type the content type of the file
+     * @param coding null, or the content coding of the file if it's a
+     * precompressed variant
+     * @return null if the file is too large to be cached, the new entry
+     * otherwise, cached only if the file didn't change meanwhile
+     * @throws IOException
+     */
+    public Entry put(String key, File file, Content.Type type, String coding)
+            throws IOException {
+
+        long lastModified = file.lastModified();
+        long length = file.length();
+        if (!isOffHeap(length) && length > maxEntrySize) {
+            return null;
+        }
+
+        Content content;
+        try (FileChannel channel = FileChannel.open(file.toPath())) {
+            length = channel.size(); // Not grown since checked
+            if (isOffHeap(length)) {
+                content = Content.buffer(type, channel.map(
+                        FileChannel.MapMode.READ_ONLY, 0, length));
+            } else if (length > maxEntrySize) {
+                return null;
+            } else {
+                ByteBuffer data = ByteBuffer.allocate((int) length);
+                while (data.hasRemaining() && -1 != channel.read(data)) {
+                    // Read fully
+                }
+                if (data.hasRemaining()) {
+                    return null; // Truncated while read
+                }
+                content = Content.build(type, data.array());
+            }
+        }
+
+        return put(new Entry(key, file, length, lastModified, content, coding,
+                System.currentTimeMillis()));
+    }
+
+    /**
+     * Cache a variant of a file, such as its compressed content, for a
+     * requested path, unless it is too large
+     *
+     * @param key the requested path and the variant
+     * @param file the file the content was derived from
+     * @param length the length of the file the content was derived from
+     * @param lastModified the modification time of the file the content was
+     * derived from
+     * @param content
+     * @param coding the content coding of the content
+     * @return the new entry, cached only if small enough and if the file
+     * is unchanged
+     */
+    public Entry put(String key, File file, long length, long lastModified,
+            Content content, String coding) {
+
+        long size = content.length();
+        if (isOffHeap(size) && null == content.asBufferContent()) {
+            ByteBuffer direct = ByteBuffer.allocateDirect((int) size);
+            direct.put(content.toBytes()).flip();
+            content = Content.buffer(content.type(), direct);
+        }
+
+        Entry entry = new Entry(key, file, length, lastModified, content,
+                coding, System.currentTimeMillis());
+
+        return entry.offHeap || size <= maxEntrySize ? put(entry) : entry;
+    }
+
+    /**
+     * Determine if a content of a given length would be cached
+     *
+     * @param length
+     * @return {@code true} if the content is not too large to be cached
+     */
+    public boolean accepts(long length) {
+        return isOffHeap(length) || length <= maxEntrySize;
+    }
+
+    /**
+     * Cache an entry, unless its file changed since it was read: the
+     * invalidation of the change may already have run, and a watched entry
+     * is never checked again
+     *
+     * @param entry
+     * @return the entry, cached or not
+     */
+    private Entry put(Entry entry) {
+        synchronized (this) {
+            if (entry.lastModified != entry.file.lastModified()
+                    || entry.length != entry.file.length()) {
+                return entry;
+            }
+
+            Entry previous = entries.put(entry.key, entry);
+            if (null != previous) {
+                weight -= previous.weight();
+                offHeapWeight -= previous.offHeapWeight();
+            }
+            weight += entry.weight();
+            offHeapWeight += entry.offHeapWeight();
+
+            Iterator<Entry> eldest = entries.values().iterator();
+            while ((weight > capacity || offHeapWeight > offHeapCapacity)
+                    && eldest.hasNext()) {
+                Entry evicted = eldest.next();
+                if (weight <= capacity && !evicted.offHeap) {
+                    continue; // Only the off-heap budget is exceeded
+                }
+                eldest.remove();
+                weight -= evicted.weight();
+                offHeapWeight -= evicted.offHeapWeight();
+                evictions.increment();
+            }
+        }
+
+        return entry;
+    }
+
+    /**
+     * Remove the cached file of a requested path
+     *
+     * @param key the requested path
+     */
+    public synchronized void invalidate(String key) {
+        Entry entry = entries.remove(key);
+        if (null != entry) {
+            weight -= entry.weight();
+            offHeapWeight -= entry.offHeapWeight();
+        }
+    }
+
+    /**
+     * Remove the entries loaded from a file or from the files of a
+     * directory, and the compressed variants of a file if it's a
+     * precompressed one
+     *
+     * @param changed the file or directory
+     */
+    public synchronized void invalidate(Path changed) {
+        Path path = changed.toAbsolutePath().normalize();
+        String name = path.toString();
+        String original = name.endsWith(".gz")
+                ? name.substring(0, name.length() - 3) : null;
+
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.path.startsWith(path)
+                    || entry.path.toString().equals(original)) {
+                it.remove();
+                weight -= entry.weight();
+                offHeapWeight -= entry.offHeapWeight();
+            }
+        }
+    }
+
+    /**
+     * Remove all cached files
+     */
+    public synchronized void clear() {
+        entries.clear();
+        weight = 0;
+        offHeapWeight = 0;
+    }
+
+    /**
+     * Watch a directory and its subdirectories, invalidating the entries of
+     * the files as soon as they change, on a background thread. Watched
+     * entries are then no longer checked for modification, see
+     * {@link #REVALIDATE_INTERVAL}. A previous watch is stopped.
+     *
+     * @param root
+     * @throws IOException if the directory can't be watched
+     */
+    public synchronized void watch(Path root) throws IOException {
+        unwatch();
+
+        WatchService service = root.getFileSystem().newWatchService();
+        Map<WatchKey, Path> directories = new HashMap<>();
+        try {
+            register(service, root, directories);
+        } catch (IOException ex) {
+            service.close();
+            throw ex;
+        }
+
+        Thread watcher = new Thread(() -> watch(service, directories),
+                "HttpServer-file-watch");
+        watcher.setDaemon(true);
+        watcher.start();
+
+        clear(); // Entries loaded before the watch may be stale already
+        watchService = service;
+    }
+
+    /**
+     * Stop watching the directory, if any, and check cached files for
+     * modification again
+     */
+    public synchronized void unwatch() {
+        WatchService service = watchService;
+        if (null == service) {
+            return;
+        }
+
+        watchService = null;
+        try {
+            service.close(); // Ends the watcher
+        } catch (IOException ex) {
+            ex.printStackTrace(System.err);
+        }
+    }
+
+    /**
+     * Determine if the directory of the cached files is watched
+     *
+     * @return {@code true} if entries are invalidated as soon as their files
+     * change
+     */
+    public boolean watched() {
+        return null != watchService;
+    }
+
+    /**
+     * Be notified of the changes seen while the directory is watched, on the
+     * watching thread
+     *
+     * @param listener called with the changed file or directory, or with
+     * null when changes were missed
+     */
+    public void addChangeListener(Consumer<Path> listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Get the number of cached files
+     *
+     * @return the number of entries
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Get the heap memory used by the cached files
+     *
+     * @return the estimated size of the entries in the heap, in bytes
+     */
+    public synchronized long weight() {
+        return weight;
+    }
+
+    /**
+     * Get the memory used by the contents cached out of the heap
+     *
+     * @return the size of the mapped and direct contents, in bytes
+     */
+    public synchronized long offHeapWeight() {
+        return offHeapWeight;
+    }
+
+    /**
+     * Get the number of lookups answered from the cache
+     *
+     * @return the number of hits
+     */
+    public long hits() {
+        return hits.sum();
+    }
+
+    /**
+     * Get the number of lookups not answered from the cache
+     *
+     * @return the number of misses
+     */
+    public long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * Get the number of entries removed to make room for new ones
+     *
+     * @return the number of evictions
+     */
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "FileCache[size=" + size() + ", weight=" + weight()
+                + ", offHeapWeight=" + offHeapWeight() + ", hits=" + hits()
+                + ", misses=" + misses() + ", evictions=" + evictions() + "]";
+    }
+
+    /**
+     * Check, at most once per {@link #REVALIDATE_INTERVAL}, that the file of
+     * an entry was not modified, unless the files are watched
+     *
+     * @param entry
+     * @return {@code false} if the file was modified or deleted
+     */
+    private boolean isFresh(Entry entry) {
+        long now = System.currentTimeMillis();
+        if (null != watchService
+                || now - entry.checked < REVALIDATE_INTERVAL) {
+            return true;
+        }
+
+        File file = entry.file;
+        if (entry.lastModified != file.lastModified()
+                || entry.length != file.length()) {
+            return false;
+        }
+
+        entry.checked = now;
+        return true;
+    }
+
+    private boolean isOffHeap(long length) {
+        return length > OFF_HEAP_THRESHOLD && length <= maxOffHeapEntrySize;
+    }
+
+    /**
+     * Register a directory and its subdirectories to a watch service
+     *
+     * @param service
+     * @param root
+     * @param directories the registered directories, by key
+     * @throws IOException
+     */
+    private static void register(WatchService service, Path root,
+            Map<WatchKey, Path> directories) throws IOException {
+
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir,
+                    BasicFileAttributes attrs) throws IOException {
+                directories.put(dir.register(service,
+                        StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE,
+                        StandardWatchEventKinds.ENTRY_MODIFY), dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Invalidate the entries of the changed files until the watch service is
+     * closed
+     *
+     * @param service
+     * @param directories the registered directories, by key
+     */
+    private void watch(WatchService service, Map<WatchKey, Path> directories) {
+        try {
+            for (;;) {
+                WatchKey key = service.take();
+                Path dir = directories.get(key);
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (StandardWatchEventKinds.OVERFLOW == event.kind()
+                            || null == dir) {
+                        clear(); // Changes were missed
+                        notifyListeners(null);
+                        continue;
+                    }
+
+                    Path changed = dir.resolve((Path) event.context());
+                    invalidate(changed);
+                    notifyListeners(changed);
+                    if (StandardWatchEventKinds.ENTRY_CREATE == event.kind()
+                            && Files.isDirectory(changed)) {
+                        try {
+                            register(service, changed, directories);
+                        } catch (IOException ex) {
+                            ex.printStackTrace(System.err);
+                        }
+                    }
+                }
+
+                if (!key.reset()) {
+                    directories.remove(key);
+                }
+            }
+        } catch (ClosedWatchServiceException ex) {
+            // Unwatched
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void notifyListeners(Path changed) {
+        for (Consumer<Path> listener : listeners) {
+            listener.accept(changed);
+        }
+    }
+}
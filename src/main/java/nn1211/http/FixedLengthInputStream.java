@@ -0,0 +1,74 @@
+package nn1211.http;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A request body of a known Content-Length, read from the connection stream
+ * without consuming the bytes following it
+ *
+ * @author nn1211
+ *
+ */
+final class FixedLengthInputStream extends InputStream {
+
+    private final InputStream source;
+
+    private long remaining;
+
+    /**
+     * Create a new instance reading a given number of bytes
+     *
+     * @param source
+     * @param length
+     */
+    FixedLengthInputStream(InputStream source, long length) {
+        this.source = source;
+        remaining = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (0 == remaining) {
+            return -1;
+        }
+
+        int b = source.read();
+        if (-1 == b) {
+            throw new EOFException("Request body ended prematurely");
+        }
+
+        remaining--;
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (0 == remaining) {
+            return -1;
+        }
+
+        if (0 == len) {
+            return 0;
+        }
+
+        int n = source.read(b, off, (int) Math.min(len, remaining));
+        if (-1 == n) {
+            throw new EOFException("Request body ended prematurely");
+        }
+
+        remaining -= n;
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(remaining, source.available());
+    }
+
+    @Override
+    public void close() {
+        // The connection stream is owned by the server
+    }
+}
@@ -0,0 +1,226 @@
+package nn1211.http;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import nn1211.http.HttpResponse.HttpResponseImpl;
+
+/**
+ * An immutable response serialized once, status line and headers included,
+ * in its four forms: with and without body, keeping and closing the
+ * connection. Sending it writes a view of these buffers, without encoding or
+ * copying anything, so one instance may answer any number of requests
+ * concurrently. Its headers can't be changed.
+ *
+ * @author nn1211
+ *
+ */
+public final class FrozenResponse implements HttpResponse {
+
+    /**
+     * The shared error responses, by status code ordinal
+     */
+    private static final FrozenResponse[] ERRORS;
+
+    static {
+        StatusCode[] codes = StatusCode.values();
+        ERRORS = new FrozenResponse[codes.length];
+        for (StatusCode code : codes) {
+            ERRORS[code.ordinal()] = new FrozenResponse(new HttpResponseImpl(
+                    code, Content.text(code.reasonPhrase())));
+        }
+    }
+
+    private final StatusCode statusCode;
+    private final HttpHeaders headers;
+    private final Content body;
+
+    private final ByteBuffer full;
+    private final ByteBuffer head;
+    private final ByteBuffer fullClose;
+    private final ByteBuffer headClose;
+
+    /**
+     * Headers which can't be changed once copied
+     *
+     * @author nn1211
+     *
+     */
+    private static final class FrozenHeaders extends HttpHeaders {
+
+        private final boolean frozen;
+
+        FrozenHeaders(List<HttpHeader> headers) {
+            for (HttpHeader header : headers) {
+                put(null == header.name()
+                        ? HttpHeader.from(header.nameAsString(), header.value())
+                        : HttpHeader.from(header.name(), header.value()));
+            }
+
+            frozen = true;
+        }
+
+        @Override
+        public HttpHeaders put(HttpHeader header) {
+            if (frozen) {
+                throw new UnsupportedOperationException(
+                        "Couldn't change the headers of a frozen response");
+            }
+
+            return super.put(header);
+        }
+
+        @Override
+        public HttpHeaders remove(HttpHeader.Name name) {
+            throw new UnsupportedOperationException(
+                    "Couldn't change the headers of a frozen response");
+        }
+    }
+
+    /**
+     * Serialize a response
+     *
+     * @param resp
+     */
+    private FrozenResponse(HttpResponse resp) {
+        statusCode = resp.statusCode();
+        headers = new FrozenHeaders(resp.headers().asList());
+
+        HttpResponseImpl copy = new HttpResponseImpl(statusCode);
+        for (HttpHeader header : headers.asList()) {
+            copy.headers().put(header);
+        }
+
+        Content content = resp.body();
+        byte[] data = null == content ? null : content.toBytes();
+        body = null == data ? null
+                : Content.buffer(content.type(), toBuffer(data));
+
+        byte[] headData = copy.headBytes();
+        full = toBuffer(concat(headData, data));
+        head = toBuffer(headData);
+
+        copy.headers().put(HttpHeader.from(HttpHeader.Name.CONNECTION,
+                "close"));
+        headData = copy.headBytes();
+        fullClose = toBuffer(concat(headData, data));
+        headClose = toBuffer(headData);
+    }
+
+    /**
+     * Freeze a response, whose body must be held in memory with a known
+     * length. The response isn't changed and may still be used.
+     *
+     * @param resp
+     * @return the frozen response, or the response itself if already frozen
+     * @throws IllegalArgumentException if the body is a file or is streamed
+     */
+    public static FrozenResponse of(HttpResponse resp)
+            throws IllegalArgumentException {
+
+        FrozenResponse frozen = resp.asFrozenResponse();
+        if (null != frozen) {
+            return frozen;
+        }
+
+        Content content = resp.body();
+        if (null != content && (-1 == content.length()
+                || null != content.asFileContent())) {
+            throw new IllegalArgumentException(
+                    "Couldn't freeze a file or streamed body");
+        }
+
+        return new FrozenResponse(resp);
+    }
+
+    /**
+     * Get the shared response of a status code whose content is the reason
+     * phrase, a frozen {@link HttpResponse#error(StatusCode)}
+     *
+     * @param statusCode
+     * @return the frozen response
+     */
+    public static FrozenResponse error(StatusCode statusCode) {
+        return ERRORS[statusCode.ordinal()];
+    }
+
+    @Override
+    public StatusCode statusCode() {
+        return statusCode;
+    }
+
+    @Override
+    public HttpHeaders headers() {
+        return headers;
+    }
+
+    @Override
+    public Content body() {
+        return body;
+    }
+
+    @Override
+    public byte[] toBytes() {
+        return toBytes(full);
+    }
+
+    @Override
+    public byte[] headBytes() {
+        return toBytes(head);
+    }
+
+    @Override
+    public ByteBuffer[] toBuffers(boolean includeBody) {
+        return toBuffers(includeBody, false);
+    }
+
+    /**
+     * Get the buffers written for this response
+     *
+     * @param includeBody whether the body, if any, is included
+     * @param close whether the response carries {@code Connection: close}
+     * @return a read-only view of the serialized response
+     */
+    public ByteBuffer[] toBuffers(boolean includeBody, boolean close) {
+        ByteBuffer data = close ? includeBody ? fullClose : headClose
+                : includeBody ? full : head;
+
+        return new ByteBuffer[] {data.duplicate()};
+    }
+
+    @Override
+    public FrozenResponse asFrozenResponse() {
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return statusCode + "";
+    }
+
+    private static ByteBuffer toBuffer(byte[] data) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+        buffer.put(data).flip();
+
+        return buffer.asReadOnlyBuffer();
+    }
+
+    private static byte[] concat(byte[] head, byte[] body) {
+        if (null == body) {
+            return head;
+        }
+
+        byte[] data = new byte[head.length + body.length];
+        System.arraycopy(head, 0, data, 0, head.length);
+        System.arraycopy(body, 0, data, head.length, body.length);
+
+        return data;
+    }
+
+    private static byte[] toBytes(ByteBuffer buffer) {
+        byte[] data = new byte[buffer.remaining()];
+        buffer.duplicate().get(data);
+
+        return data;
+    }
+}
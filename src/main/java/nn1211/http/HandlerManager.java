@@ -1,12 +1,13 @@
 package nn1211.http;
 
-import java.util.HashMap;
-import java.util.Map;
-
+import nn1211.http.HttpRequest.HttpRequestImpl;
 import nn1211.http.HttpRequest.Method;
+import nn1211.http.Router.Route;
 
 /**
- * Manage handlers for {@link HttpServer}s
+ * Manage handlers for {@link HttpServer}s. Handlers are registered on route
+ * patterns, one routing tree per method (see {@link Router}), and should be
+ * registered before the server starts.
  *
  * @author nn1211
  *
@@ -15,45 +16,120 @@ public enum HandlerManager {
 
     INSTANCE;
 
-    private final Map<String, Handler> handlers = new HashMap<>();
+    private final Router[] routers = new Router[Method.values().length];
     private Handler defaultHandler = new DefaultHandler();
 
     /**
-     * Get the handler for the given request based on its method and URI.
+     * Get the handler for the given request based on its method and URI. The
+     * pattern of the matching route and the parameters it captures are set on
+     * the request.
      *
      * @param req
      * @return the handler for the given request.
      */
     public Handler get(HttpRequest req) {
-        Handler handler = handlers
-                .get(req.method().name() + req.uri().substring(1));
+        String uri = req.uri();
+        int end = uri.indexOf('?');
+        if (-1 == end) {
+            end = uri.length();
+        }
+
+        Route route = find(req.method(), uri, end);
+        if (null == route && Method.HEAD == req.method()) {
+            // HEAD requests are answered as GET ones, without the body
+            route = find(Method.GET, uri, end);
+        }
 
-        if (null == handler) {
+        if (null == route) {
             return defaultHandler;
         }
 
-        return handler;
+        if (req instanceof HttpRequestImpl) {
+            HttpRequestImpl impl = (HttpRequestImpl) req;
+            impl.route(route.pattern());
+            if (0 < route.names().length) {
+                impl.params(route.names(), route.values(uri, end));
+            }
+        }
+
+        return route.handler();
     }
 
     /**
-     * Register a handler based on a request URI and method
+     * Register a handler based on a request URI and method. The URI is a route
+     * pattern whose segments may be {@code {name}} captures, the last one
+     * possibly being a {@code *} wildcard, as in {@code /users/{id}} or
+     * {@code /files/*}.
      *
      * @param method
      * @param uri
      * @param handler
      * @return this
+     * @throws IllegalArgumentException if the route pattern is invalid
      */
-    public HandlerManager register(Method method, String uri, Handler handler) {
+    public HandlerManager register(Method method, String uri, Handler handler)
+            throws IllegalArgumentException {
+
         if (Method.ALL == method) {
-            handlers.put(Method.GET.name() + uri, handler);
-            handlers.put(Method.POST.name() + uri, handler);
-            handlers.put(Method.PUT.name() + uri, handler);
-            handlers.put(Method.DELETE.name() + uri, handler);
+            for (Method m : Method.values()) {
+                if (Method.ALL != m && Method.UNSUPPORTED != m) {
+                    router(m).add(uri, handler);
+                }
+            }
         } else {
-            handlers.put(method.name() + uri, handler);
+            router(method).add(uri, handler);
         }
 
         return this;
     }
 
+    /**
+     * Register an asynchronous handler based on a request URI and method, see
+     * {@link #register(Method, String, Handler)}. No thread waits for its
+     * responses on the {@link nn1211.http.server.Engine#NIO} engine, the
+     * thread of the connection does on the blocking one.
+     *
+     * @param method
+     * @param uri
+     * @param handler
+     * @return this
+     * @throws IllegalArgumentException if the route pattern is invalid
+     */
+    public HandlerManager registerAsync(Method method, String uri,
+            AsyncHandler handler) throws IllegalArgumentException {
+        return register(method, uri, handler);
+    }
+
+    /**
+     * Register a fixed reply based on a request URI and method, see
+     * {@link #register(Method, String, Handler)}. The response is frozen once
+     * and sent as serialized to every matching request.
+     *
+     * @param method
+     * @param uri
+     * @param resp
+     * @return this
+     * @throws IllegalArgumentException if the route pattern is invalid, or
+     * the body of the response is a file or is streamed
+     */
+    public HandlerManager register(Method method, String uri,
+            HttpResponse resp) throws IllegalArgumentException {
+        FrozenResponse frozen = resp.freeze();
+        return register(method, uri, req -> frozen);
+    }
+
+    private Route find(Method method, String uri, int end) {
+        Router router = routers[method.ordinal()];
+        return null == router ? null : router.find(uri, end);
+    }
+
+    private Router router(Method method) {
+        Router router = routers[method.ordinal()];
+        if (null == router) {
+            router = routers[method.ordinal()] = new Router();
+        }
+
+        return router;
+    }
+
 }
@@ -1,5 +1,13 @@
 package nn1211.http;
 
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
 import nn1211.http.Content.TextContent;
 
 /**
@@ -16,9 +24,72 @@ public interface HttpHeader {
      * @param name
      * @param value
      * @return a {@link HttpHeader}
+     * @throws IllegalArgumentException if the value contains a line break
+     */
+    static HttpHeader from(Name name, String value)
+            throws IllegalArgumentException {
+        return new HttpHeaderImpl(name, HttpHeaderImpl.checkValue(value));
+    }
+
+    /**
+     * Build a {@link HttpHeader} from a name, supported or not, and a value.
+     * A supported name is found ignoring case and sent as registered.
+     *
+     * @param name a header field name
+     * @param value
+     * @return a {@link HttpHeader}
+     * @throws IllegalArgumentException if the name is not a token or the
+     * value contains a line break
+     */
+    static HttpHeader from(String name, String value)
+            throws IllegalArgumentException {
+        Name supportedName = Name.from(name);
+        if (null != supportedName) {
+            return from(supportedName, value);
+        }
+
+        return new HttpHeaderImpl(HttpHeaderImpl.checkName(name),
+                HttpHeaderImpl.checkValue(value));
+    }
+
+    /**
+     * Build a {@link HttpHeader} from a supported name and a value already
+     * encoded, one byte per ISO-8859-1 character. The header is sent as
+     * encoded here, which makes it cheap to share across responses, as a
+     * constant.
+     *
+     * @param name
+     * @param value
+     * @return a {@link HttpHeader}
+     * @throws IllegalArgumentException if the value contains a line break
+     */
+    static HttpHeader from(Name name, byte[] value)
+            throws IllegalArgumentException {
+        byte[] nameBytes = name.bytes();
+        byte[] data = new byte[nameBytes.length + 2 + value.length];
+        System.arraycopy(nameBytes, 0, data, 0, nameBytes.length);
+        data[nameBytes.length] = 58; // :
+        data[nameBytes.length + 1] = 32;
+        System.arraycopy(value, 0, data, nameBytes.length + 2, value.length);
+
+        return new HttpHeaderImpl(name, HttpHeaderImpl.checkValue(
+                new String(value, StandardCharsets.ISO_8859_1)), data);
+    }
+
+    /**
+     * Build the Content-Type header of a content of a given type, as built by
+     * {@link Content#build(Content.Type, byte[])}
+     *
+     * @param type
+     * @return a Content-Type header
      */
-    static HttpHeader from(Name name, String value) {
-        return new HttpHeaderImpl(name, value);
+    static HttpHeader buildContentType(Content.Type type) {
+        if (Content.Type.HTML == type || Content.Type.TEXT == type) {
+            return new HttpHeaderImpl(Name.CONTENT_TYPE, type.toString()
+                    + "; charset=" + Charset.defaultCharset().name());
+        }
+
+        return new HttpHeaderImpl(Name.CONTENT_TYPE, type.toString());
     }
 
     /**
@@ -30,8 +101,7 @@ public interface HttpHeader {
     static HttpHeader buildContentType(Content content) {
         TextContent textContent = content.asTextContent();
         if (null == textContent) {
-            return new HttpHeaderImpl(Name.CONTENT_TYPE,
-                    content.type().toString());
+            return buildContentType(content.type());
         }
 
         return new HttpHeaderImpl(Name.CONTENT_TYPE, content.type().toString()
@@ -45,12 +115,98 @@ public interface HttpHeader {
      * @return a Content-Length header
      */
     static HttpHeader buildContentLength(Content content) {
-        return new HttpHeaderImpl(Name.CONTENT_LENGTH,
-                content.toBytes().length + "");
+        return buildContentLength(content.length());
+    }
+
+    /**
+     * Build a Content-Length header from a length
+     *
+     * @param length
+     * @return a Content-Length header
+     */
+    static HttpHeader buildContentLength(long length) {
+        return new HttpHeaderImpl(Name.CONTENT_LENGTH, length + "");
+    }
+
+    /**
+     * Build a Transfer-Encoding header for a body of unknown length, sent in
+     * chunks
+     *
+     * @return a Transfer-Encoding header
+     */
+    static HttpHeader buildChunked() {
+        return new HttpHeaderImpl(Name.TRANSFER_ENCODING, "chunked");
+    }
+
+    /**
+     * Build an ETag header identifying a version of a file from its length
+     * and modification time, without reading it
+     *
+     * @param length
+     * @param lastModified
+     * @return an ETag header
+     */
+    static HttpHeader buildETag(long length, long lastModified) {
+        return buildETag(length, lastModified, null);
+    }
+
+    /**
+     * Build an ETag header identifying a version of a file sent with a
+     * content coding, distinct from the one of the file sent as is
+     *
+     * @param length
+     * @param lastModified
+     * @param coding null for the identity coding
+     * @return an ETag header
+     */
+    static HttpHeader buildETag(long length, long lastModified,
+            String coding) {
+        return new HttpHeaderImpl(Name.ETAG, '"' + Long.toHexString(length)
+                + '-' + Long.toHexString(lastModified)
+                + (null == coding ? "" : '-' + coding) + '"');
+    }
+
+    /**
+     * Build a Last-Modified header
+     *
+     * @param lastModified the modification time, in milliseconds
+     * @return a Last-Modified header
+     */
+    static HttpHeader buildLastModified(long lastModified) {
+        return new HttpHeaderImpl(Name.LAST_MODIFIED, formatDate(lastModified));
+    }
+
+    /**
+     * Format a time as a HTTP date, such as
+     * {@code Sun, 06 Nov 1994 08:49:37 GMT}
+     *
+     * @param millis
+     * @return a HTTP date
+     */
+    static String formatDate(long millis) {
+        return HttpHeaderImpl.HTTP_DATE.format(
+                Instant.ofEpochMilli(millis).atOffset(ZoneOffset.UTC));
+    }
+
+    /**
+     * Parse a HTTP date
+     *
+     * @param date
+     * @return -1 if the date is invalid, the time in milliseconds otherwise
+     */
+    static long parseDate(String date) {
+        try {
+            return Instant.from(DateTimeFormatter.RFC_1123_DATE_TIME
+                    .parse(date)).toEpochMilli();
+        } catch (DateTimeException ex) {
+            return -1;
+        }
     }
 
     /**
-     * Indicate this header values are able to be appended
+     * Indicate this header may be sent several times, as Set-Cookie, whose
+     * values can't be joined in one line. Such headers are kept as separate
+     * lines by {@link HttpHeaders}.
      *
      * @return false (only true for special cases such as Set-Cookie)
      */
@@ -105,10 +261,49 @@ public interface HttpHeader {
      */
     public enum Name {
 
-        CONNECTION("Connection"), CONTENT_LENGTH("Content-Length"),
-        CONTENT_TYPE("Content-Type");
+        ACCEPT("Accept"), ACCEPT_ENCODING("Accept-Encoding"),
+        ACCEPT_LANGUAGE("Accept-Language"), ACCEPT_RANGES("Accept-Ranges"),
+        ACCESS_CONTROL_ALLOW_ORIGIN("Access-Control-Allow-Origin"),
+        AGE("Age"), ALLOW("Allow"), AUTHORIZATION("Authorization"),
+        CACHE_CONTROL("Cache-Control"), CONNECTION("Connection"),
+        CONTENT_DISPOSITION("Content-Disposition"),
+        CONTENT_ENCODING("Content-Encoding"),
+        CONTENT_LANGUAGE("Content-Language"), CONTENT_LENGTH("Content-Length"),
+        CONTENT_LOCATION("Content-Location"), CONTENT_RANGE("Content-Range"),
+        CONTENT_SECURITY_POLICY("Content-Security-Policy"),
+        CONTENT_TYPE("Content-Type"), COOKIE("Cookie"), DATE("Date"),
+        ETAG("ETag"), EXPECT("Expect"), EXPIRES("Expires"), HOST("Host"),
+        IF_MATCH("If-Match"), IF_MODIFIED_SINCE("If-Modified-Since"),
+        IF_NONE_MATCH("If-None-Match"), IF_RANGE("If-Range"),
+        IF_UNMODIFIED_SINCE("If-Unmodified-Since"), KEEP_ALIVE("Keep-Alive"),
+        LAST_MODIFIED("Last-Modified"), LINK("Link"), LOCATION("Location"),
+        ORIGIN("Origin"), PRAGMA("Pragma"), RANGE("Range"),
+        REFERER("Referer"), RETRY_AFTER("Retry-After"), SERVER("Server"),
+        SET_COOKIE("Set-Cookie"),
+        STRICT_TRANSPORT_SECURITY("Strict-Transport-Security"),
+        TRANSFER_ENCODING("Transfer-Encoding"), UPGRADE("Upgrade"),
+        USER_AGENT("User-Agent"), VARY("Vary"),
+        WWW_AUTHENTICATE("WWW-Authenticate"),
+        X_CONTENT_TYPE_OPTIONS("X-Content-Type-Options"),
+        X_FORWARDED_FOR("X-Forwarded-For");
+
+        /**
+         * The names by hash of their value ignoring case, open-addressed
+         */
+        private static final Name[] TABLE = new Name[128];
+
+        static {
+            for (Name name : values()) {
+                int i = hash(name.value) & TABLE.length - 1;
+                while (null != TABLE[i]) {
+                    i = i + 1 & TABLE.length - 1;
+                }
+                TABLE[i] = name;
+            }
+        }
 
         private final String value;
+        private final byte[] bytes;
 
         /**
          * Initialize value
@@ -117,6 +312,122 @@ public interface HttpHeader {
          */
         Name(String value) {
             this.value = value;
+            bytes = value.getBytes(StandardCharsets.US_ASCII);
+        }
+
+        /**
+         * Get a supported name from its case-insensitive value, without
+         * allocating
+         *
+         * @param value
+         * @return null or a {@link Name}
+         */
+        public static Name from(String value) {
+            for (int i = hash(value) & TABLE.length - 1;; i = i + 1
+                    & TABLE.length - 1) {
+                Name name = TABLE[i];
+                if (null == name || name.matches(value)) {
+                    return name;
+                }
+            }
+        }
+
+        /**
+         * Get a supported name from its case-insensitive ASCII bytes
+         *
+         * @param data
+         * @param offset
+         * @param length
+         * @return null or a {@link Name}
+         */
+        public static Name from(byte[] data, int offset, int length) {
+            int hash = 0;
+            for (int i = offset; i < offset + length; i++) {
+                hash = 31 * hash + lowerCase(data[i] & 0xFF);
+            }
+
+            for (int i = (hash ^ hash >>> 16) & TABLE.length - 1;; i = i + 1
+                    & TABLE.length - 1) {
+                Name name = TABLE[i];
+                if (null == name || name.matches(data, offset, length)) {
+                    return name;
+                }
+            }
+        }
+
+        /**
+         * Hash a name ignoring the case of its ASCII letters, as
+         * {@link #from(byte[], int, int)} does
+         *
+         * @param name
+         * @return the hash of the name
+         */
+        static int hash(String name) {
+            int hash = 0;
+            for (int i = 0; i < name.length(); i++) {
+                hash = 31 * hash + lowerCase(name.charAt(i));
+            }
+
+            return hash ^ hash >>> 16;
+        }
+
+        private static int lowerCase(int c) {
+            return c >= 'A' && c <= 'Z' ? c + 32 : c;
+        }
+
+        /**
+         * Get the ASCII bytes of this name, as sent
+         *
+         * @return the bytes of this name, not to be modified
+         */
+        byte[] bytes() {
+            return bytes;
+        }
+
+        /**
+         * Compare this name with ASCII bytes, ignoring case
+         *
+         * @param data
+         * @param offset
+         * @param length
+         * @return {@code true} if the bytes are this name
+         */
+        boolean matches(byte[] data, int offset, int length) {
+            if (bytes.length != length) {
+                return false;
+            }
+
+            for (int i = 0; i < length; i++) {
+                int b = data[offset + i];
+                if (b != bytes[i] && ((b | 32) != (bytes[i] | 32)
+                        || (b | 32) < 97 || (b | 32) > 122)) {
+                    return false; // Only letters are compared ignoring case
+                }
+            }
+
+            return true;
+        }
+
+        /**
+         * Compare this name with a string, ignoring case
+         *
+         * @param name
+         * @return {@code true} if the string is this name
+         */
+        boolean matches(String name) {
+            if (bytes.length != name.length()) {
+                return false;
+            }
+
+            for (int i = 0; i < bytes.length; i++) {
+                int c = name.charAt(i);
+                if (c != bytes[i] && (c > 127 || lowerCase(c) != lowerCase(
+                        bytes[i]))) {
+                    return false;
+                }
+            }
+
+            return true;
         }
 
         @Override
@@ -134,10 +445,29 @@ public interface HttpHeader {
      */
     class HttpHeaderImpl implements HttpHeader {
 
-        private static final String SET_COOKIE = "Set-Cookie";
+        /**
+         * The preferred HTTP date format, with a two-digit day
+         */
+        private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter
+                .ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+
+        /**
+         * The characters which can't be part of a header name, besides
+         * controls and spaces
+         */
+        private static final String SEPARATORS = "\"(),/:;<=>?@[\\]{}";
 
+        /**
+         * null for a name which is not supported
+         */
         private final Name name;
 
+        /**
+         * The name as given, for a name which is not supported
+         */
+        private final String otherName;
+        private final byte[] nameBytes;
+
         private String value;
         private byte[] bytes;
 
@@ -148,23 +478,96 @@ public interface HttpHeader {
          * @param value
          */
         HttpHeaderImpl(Name name, String value) {
+            this(name, value, null);
+        }
+
+        /**
+         * Initialize name, value and encoded form of this header
+         *
+         * @param name
+         * @param value
+         * @param bytes null to encode the header when first sent
+         */
+        HttpHeaderImpl(Name name, String value, byte[] bytes) {
             this.name = name;
+            this.otherName = null;
+            this.nameBytes = name.bytes();
             this.value = value;
+            this.bytes = bytes;
+        }
+
+        /**
+         * Initialize the name which is not supported and the value of this
+         * header
+         *
+         * @param name a token
+         * @param value
+         */
+        HttpHeaderImpl(String name, String value) {
+            this.name = null;
+            this.otherName = name;
+            this.nameBytes = name.getBytes(StandardCharsets.US_ASCII);
+            this.value = value;
+        }
+
+        /**
+         * Check a header name is a token
+         *
+         * @param name
+         * @return the name
+         * @throws IllegalArgumentException if the name is not a token
+         */
+        static String checkName(String name) throws IllegalArgumentException {
+            if (name.isEmpty()) {
+                throw new IllegalArgumentException("Empty header name");
+            }
+
+            for (int i = 0; i < name.length(); i++) {
+                char c = name.charAt(i);
+                if (c <= 32 || c > 126 || -1 != SEPARATORS.indexOf(c)) {
+                    throw new IllegalArgumentException(
+                            "Invalid header name: " + name);
+                }
+            }
+
+            return name;
+        }
+
+        /**
+         * Check a header value can't split the header block
+         *
+         * @param value
+         * @return the value
+         * @throws IllegalArgumentException if the value contains a line break
+         */
+        static String checkValue(String value)
+                throws IllegalArgumentException {
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (13 == c || 10 == c || 0 == c) {
+                    throw new IllegalArgumentException(
+                            "Invalid header value: " + value);
+                }
+            }
+
+            return value;
         }
 
         @Override
         public boolean isAppendable() {
-            return SET_COOKIE.equals(name.value);
+            return Name.SET_COOKIE == name;
         }
 
         @Override
         public void append(HttpHeader header) throws IllegalArgumentException {
-            if (name != header.name()) {
+            if (name != header.name() || null == name
+                    && !otherName.equalsIgnoreCase(header.nameAsString())) {
                 throw new IllegalArgumentException(
                         "Couldn't append other header name");
             }
 
             value += "; " + header.value();
+            bytes = null;
         }
 
         @Override
@@ -172,6 +575,11 @@ public interface HttpHeader {
             return name;
         }
 
+        @Override
+        public String nameAsString() {
+            return null == name ? otherName : name.name();
+        }
+
         @Override
         public String value() {
             return value;
@@ -179,16 +587,25 @@ public interface HttpHeader {
 
         @Override
         public byte[] toBytes() {
-            if (null == bytes) {
-                bytes = toString().getBytes();
+            byte[] data = bytes;
+            if (null == data) { // Encoded once, shared headers included
+                data = new byte[nameBytes.length + 2 + value.length()];
+                System.arraycopy(nameBytes, 0, data, 0, nameBytes.length);
+                data[nameBytes.length] = 58; // :
+                data[nameBytes.length + 1] = 32;
+                for (int i = 0; i < value.length(); i++) {
+                    data[nameBytes.length + 2 + i] = (byte) value.charAt(i);
+                }
+                bytes = data;
             }
 
-            return bytes;
+            return data;
         }
 
         @Override
         public String toString() {
-            return name + ": " + value;
+            return (null == name ? otherName : name.toString()) + ": "
+                    + value;
         }
     }
 }
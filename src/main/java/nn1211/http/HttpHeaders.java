@@ -1,36 +1,185 @@
 package nn1211.http;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 
 /**
- * A collection of {@link HttpHeader}
+ * A collection of {@link HttpHeader}, kept in insertion order. Supported
+ * headers are found through a slot per {@link HttpHeader.Name}, other ones
+ * through a small open-addressed table of their case-insensitive names. A
+ * header repeated in a parsed request keeps all its lines and is found by
+ * the first one.
  *
  * @author nn1211
  */
 public class HttpHeaders {
 
-    private final Map<String, HttpHeader> headers = new HashMap<>();
+    private static final int NAMES = HttpHeader.Name.values().length;
+
+    private HttpHeader[] headers = new HttpHeader[8];
+    private int size;
+
+    /**
+     * Index plus one of the header of every supported name, 0 if absent
+     */
+    private final int[] slots = new int[NAMES];
+
+    /**
+     * Index plus one of the headers of other names, by hash of their name,
+     * created with the first of them
+     */
+    private int[] others;
+    private int otherCount;
+
+    /**
+     * Parsed headers not moved to the array yet
+     */
+    private RawHeaders raw;
+
+    /**
+     * Create an empty collection
+     */
+    public HttpHeaders() {
+    }
 
     /**
-     * Put a {@link HttpHeader} to this collection
+     * Create a collection over a parsed header block
+     *
+     * @param raw
+     */
+    HttpHeaders(RawHeaders raw) {
+        this.raw = raw;
+    }
+
+    /**
+     * Put a {@link HttpHeader} to this collection, replacing the header of
+     * the same name in place, unless it may be repeated, see
+     * {@link HttpHeader#isAppendable()}
      *
      * @param header
      * @return this
      */
     public HttpHeaders put(HttpHeader header) {
-        HttpHeader storedHeader = headers.get(header.nameAsString());
-        if (null != storedHeader && header.isAppendable()) {
-            storedHeader.append(header);
-        } else {
-            headers.put(header.nameAsString(), header);
+        materialize();
+
+        HttpHeader.Name name = header.name();
+        int index = null == name ? indexOf(header.nameAsString())
+                : slots[name.ordinal()] - 1;
+        if (-1 != index && !header.isAppendable()) {
+            headers[index] = header;
+            return this;
+        }
+
+        add(header, name, index);
+        return this;
+    }
+
+    /**
+     * Remove every header of a given name
+     *
+     * @param name
+     * @return this
+     */
+    public HttpHeaders remove(HttpHeader.Name name) {
+        materialize();
+
+        if (0 == slots[name.ordinal()]) {
+            return this;
+        }
+
+        HttpHeader[] kept = headers;
+        int count = size;
+        headers = new HttpHeader[kept.length];
+        size = 0;
+        Arrays.fill(slots, 0);
+        others = null;
+        otherCount = 0;
+        for (int i = 0; i < count; i++) {
+            if (name != kept[i].name()) {
+                append(kept[i]);
+            }
         }
 
         return this;
     }
 
+    /**
+     * Get the header of a given name
+     *
+     * @param name
+     * @return null or the {@link HttpHeader} of the given name
+     */
+    public HttpHeader get(HttpHeader.Name name) {
+        int index = slots[name.ordinal()] - 1;
+        if (-1 != index) {
+            return headers[index];
+        }
+
+        if (null != raw) {
+            index = raw.indexOf(name);
+            if (-1 != index) {
+                return raw.get(index);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Get the header of a given name, ignoring case
+     *
+     * @param name
+     * @return null or the {@link HttpHeader} of the given name
+     */
+    public HttpHeader get(String name) {
+        HttpHeader.Name supportedName = HttpHeader.Name.from(name);
+        if (null != supportedName) {
+            return get(supportedName);
+        }
+
+        int index = indexOf(name);
+        if (-1 != index) {
+            return headers[index];
+        }
+
+        if (null != raw) {
+            index = raw.indexOf(name);
+            if (-1 != index) {
+                return raw.get(index);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Get the header at an index, in insertion order
+     *
+     * @param index
+     * @return the header at the given index
+     */
+    public final HttpHeader get(int index) {
+        materialize();
+
+        if (index >= size) {
+            throw new IndexOutOfBoundsException(index + "");
+        }
+
+        return headers[index];
+    }
+
+    /**
+     * Get the number of headers
+     *
+     * @return the number of headers
+     */
+    public final int size() {
+        materialize();
+
+        return size;
+    }
+
     /**
      * Determine this collection has any element or not
      *
@@ -38,15 +187,125 @@ public class HttpHeaders {
      * otherwise.
      */
     public final boolean isEmpty() {
-        return headers.isEmpty();
+        return 0 == size && (null == raw || 0 == raw.size());
     }
 
     /**
-     * Get this as a {@link List}
+     * Get a copy of this as a {@link List}, see {@link #get(int)} to iterate
+     * without copying
      *
      * @return this as a {@link List}
      */
     public final List<HttpHeader> asList() {
-        return new ArrayList<>(headers.values());
+        materialize();
+
+        return new ArrayList<>(Arrays.asList(headers).subList(0, size));
+    }
+
+    /**
+     * Move the parsed headers to the array, every line kept, so that a
+     * repeated header is still found by its first line
+     */
+    private void materialize() {
+        if (null == raw) {
+            return;
+        }
+
+        RawHeaders parsed = raw;
+        raw = null;
+        for (int i = 0; i < parsed.size(); i++) {
+            append(parsed.get(i));
+        }
+    }
+
+    /**
+     * Append a header, even if one of the same name is present
+     *
+     * @param header
+     */
+    private void append(HttpHeader header) {
+        HttpHeader.Name name = header.name();
+        add(header, name, null == name ? indexOf(header.nameAsString())
+                : slots[name.ordinal()] - 1);
+    }
+
+    /**
+     * Append a header
+     *
+     * @param header
+     * @param name the name of the header, null if unsupported
+     * @param index the index of the first header of the same name or -1
+     */
+    private void add(HttpHeader header, HttpHeader.Name name, int index) {
+        if (size == headers.length) {
+            headers = Arrays.copyOf(headers, size * 2);
+        }
+        headers[size++] = header;
+
+        if (-1 != index) {
+            return; // A repeated header, found by its first line
+        }
+
+        if (null == name) {
+            addOther(header.nameAsString(), size);
+        } else {
+            slots[name.ordinal()] = size;
+        }
+    }
+
+    /**
+     * Find the header of an unsupported name, ignoring case
+     *
+     * @param name
+     * @return the index of the header or -1
+     */
+    private int indexOf(String name) {
+        if (null == others) {
+            return -1;
+        }
+
+        int mask = others.length - 1;
+        for (int i = HttpHeader.Name.hash(name) & mask;; i = i + 1 & mask) {
+            int index = others[i] - 1;
+            if (-1 == index) {
+                return -1;
+            }
+            if (name.equalsIgnoreCase(headers[index].nameAsString())) {
+                return index;
+            }
+        }
+    }
+
+    /**
+     * Add the index of a header of an unsupported name to the table, growing
+     * it to stay at most half full
+     *
+     * @param name
+     * @param slot the index plus one of the header
+     */
+    private void addOther(String name, int slot) {
+        if (null == others) {
+            others = new int[8];
+        } else if (2 * (otherCount + 1) > others.length) {
+            int[] old = others;
+            others = new int[old.length * 2];
+            for (int stored : old) {
+                if (0 != stored) {
+                    insert(headers[stored - 1].nameAsString(), stored);
+                }
+            }
+        }
+
+        insert(name, slot);
+        otherCount++;
+    }
+
+    private void insert(String name, int slot) {
+        int mask = others.length - 1;
+        int i = HttpHeader.Name.hash(name) & mask;
+        while (0 != others[i]) {
+            i = i + 1 & mask;
+        }
+        others[i] = slot;
     }
 }
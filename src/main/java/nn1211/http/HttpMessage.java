@@ -36,13 +36,23 @@ public interface HttpMessage {
          */
         public static final byte[] CRLF = {13, 10};
 
-        private final HttpHeaders headers = new HttpHeaders();
+        private final HttpHeaders headers;
         private Content body;
 
         /**
          * Create an empty message
          */
         protected BaseMessage() {
+            headers = new HttpHeaders();
+        }
+
+        /**
+         * Create a message with already parsed headers
+         *
+         * @param headers
+         */
+        protected BaseMessage(HttpHeaders headers) {
+            this.headers = headers;
         }
 
         /**
@@ -51,10 +61,12 @@ public interface HttpMessage {
          * @param body
          */
         protected BaseMessage(Content body) {
+            this();
             this.body = body;
 
             headers.put(HttpHeader.buildContentType(body));
-            headers.put(HttpHeader.buildContentLength(body));
+            headers.put(-1 == body.length() ? HttpHeader.buildChunked()
+                    : HttpHeader.buildContentLength(body));
         }
 
         @Override
@@ -2,6 +2,8 @@ package nn1211.http;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 
 /**
  * A simple HTTP request
@@ -12,17 +14,44 @@ import java.io.InputStream;
 public interface HttpRequest extends HttpMessage {
 
     /**
-     * Parse from the request stream
+     * Parse from the request stream, reading it up to the end of the request
+     * head so that the body, if any, is read from the stream next
      *
      * @param reqStream
-     * @return null if invalid or unsupported request. A {@link HttpRequest}
-     * object, otherwise.
+     * @return null if the stream ends before a request or the request is
+     * invalid, a {@link HttpRequest} object otherwise
      * @throws IOException
+     * @deprecated reads one byte at a time, use a {@link HttpRequestParser}
      */
+    @Deprecated
     public static HttpRequest parse(InputStream reqStream) throws IOException {
-        HttpRequestImpl req = new HttpRequestImpl(reqStream);
-        req.parseRequestLine();
+        InputStream byByte = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                return reqStream.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int c = reqStream.read();
+                if (-1 == c) {
+                    return -1;
+                }
+
+                b[off] = (byte) c;
+                return 1;
+            }
+        };
+
+        HttpRequestParser parser = new HttpRequestParser();
+        HttpRequest req;
+        while (null == (req = parser.next())) {
+            if (null != parser.error() || -1 == parser.fill(byByte)) {
+                return null;
+            }
+        }
 
+        parser.attachBody(req, reqStream);
         return req;
     }
 
@@ -47,6 +76,63 @@ public interface HttpRequest extends HttpMessage {
      */
     HttpVersion httpVersion();
 
+    /**
+     * Get a parameter captured from the path of this request by the route of
+     * its handler, such as {@code id} for a route {@code /users/{id}}. The
+     * rest of the path matched by a {@code *} wildcard is named {@code *}.
+     *
+     * @param name
+     * @return null if the route of this request doesn't capture the parameter
+     */
+    String param(String name);
+
+    /**
+     * Get the pattern of the route this request was dispatched on, such as
+     * {@code /users/{id}}
+     *
+     * @return null if no registered route matches this request
+     */
+    default String route() {
+        return null;
+    }
+
+    /**
+     * Determine if this request has a body, either of a positive
+     * Content-Length or chunked
+     *
+     * @return {@code true} if this request has a body
+     */
+    default boolean hasBody() {
+        return 0 != contentLength();
+    }
+
+    /**
+     * Get the length of the body of this request
+     *
+     * @return 0 without body, -1 for a chunked body of unknown length, the
+     * Content-Length otherwise
+     */
+    long contentLength();
+
+    /**
+     * Get a stream of the body of this request, read from the connection as
+     * it is consumed and decoded from the chunked transfer-coding if needed.
+     * The body is never buffered as a whole.
+     *
+     * @return the body of this request, an empty stream if there is none
+     */
+    InputStream bodyStream();
+
+    /**
+     * Get a channel of the body of this request
+     *
+     * @return the body of this request as a channel
+     * @see #bodyStream()
+     */
+    default ReadableByteChannel bodyChannel() {
+        return Channels.newChannel(bodyStream());
+    }
+
     /**
      * Supported methods that a HTTP request can make
      *
@@ -54,9 +140,9 @@ public interface HttpRequest extends HttpMessage {
      *
      */
     public enum Method {
-        GET, POST, PUT, DELETE,
+        GET, HEAD, POST, PUT, DELETE, OPTIONS, PATCH, TRACE, CONNECT,
         /**
-         * GET, POST, PUT, and DELETE
+         * Every method above
          */
         ALL,
         /**
@@ -64,42 +150,95 @@ public interface HttpRequest extends HttpMessage {
          */
         UNSUPPORTED;
 
+        private final byte[] bytes = name().getBytes();
+
         /**
-         * Parse request method from the request stream
+         * Parse request method from the request stream, reading it up to the
+         * space following the method
          *
-         * @param inputStream
-         * @return null if invalid or unsupported method. A {@link Method}
-         * object, otherwise.
+         * @param reqStream
+         * @return null at the end of the stream, {@link #UNSUPPORTED} for
+         * invalid or unsupported methods, a {@link Method} object otherwise
          * @throws IOException
+         * @deprecated use {@link #parse(byte[], int, int)}
          */
+        @Deprecated
         public static Method parse(InputStream reqStream) throws IOException {
-            int b = reqStream.read();
-            if (-1 == b) {
-                return null;
+            byte[] token = new byte[CONNECT.bytes.length];
+            int length = 0;
+            for (int b; 32 != (b = reqStream.read());) {
+                if (-1 == b) {
+                    return 0 == length ? null : UNSUPPORTED;
+                }
+                if (length == token.length) {
+                    return UNSUPPORTED;
+                }
+                token[length++] = (byte) b;
             }
 
-            if (71 != b) {
-                return UNSUPPORTED; // Invalid or unsupported method
-            }
-            return parseGet(reqStream);
+            return 0 == length ? UNSUPPORTED : parse(token, 0, length);
         }
 
-        private static Method parseGet(InputStream reqStream)
-                throws IOException {
-
-            if (69 != reqStream.read()) {
-                return null;
+        /**
+         * Parse request method from a method token, without allocating
+         *
+         * @param data
+         * @param offset
+         * @param length
+         * @return a {@link Method} object, {@link #UNSUPPORTED} for invalid or
+         * unsupported methods
+         */
+        public static Method parse(byte[] data, int offset, int length) {
+            Method method;
+            switch (data[offset]) {
+                case 71: // G
+                    method = GET;
+                    break;
+                case 72: // H
+                    method = HEAD;
+                    break;
+                case 80: // P
+                    method = 3 == length ? PUT : 4 == length ? POST : PATCH;
+                    break;
+                case 68: // D
+                    method = DELETE;
+                    break;
+                case 79: // O
+                    method = OPTIONS;
+                    break;
+                case 84: // T
+                    method = TRACE;
+                    break;
+                case 67: // C
+                    method = CONNECT;
+                    break;
+                default:
+                    return UNSUPPORTED; // Invalid or unsupported method
             }
 
-            if (84 != reqStream.read()) {
-                return null;
+            return method.matches(data, offset, length) ? method : UNSUPPORTED;
+        }
+
+        /**
+         * Compare the name of this method with a token
+         *
+         * @param data
+         * @param offset
+         * @param length
+         * @return {@code true} if the token is this method
+         */
+        private boolean matches(byte[] data, int offset, int length) {
+            if (bytes.length != length) {
+                return false;
             }
 
-            if (32 != reqStream.read()) {
-                return null;
+            for (int i = 1; i < length; i++) {
+                if (bytes[i] != data[offset + i]) {
+                    return false;
+                }
             }
 
-            return GET;
+            return true;
         }
     }
 
@@ -111,80 +250,125 @@ public interface HttpRequest extends HttpMessage {
      */
     static class HttpRequestImpl extends BaseMessage implements HttpRequest {
 
-        private final InputStream reqStream;
+        private final Method method;
+        private final String uri;
+        private final HttpVersion httpVersion;
+        private final long contentLength;
+
+        private InputStream bodySource;
+        private InputStream bodyStream;
 
-        private Method method;
-        private String uri;
-        private HttpVersion httpVersion;
+        private String route;
+        private String[] paramNames;
+        private String[] paramValues;
 
         /**
-         * Create a new instance with a given request stream
+         * Create a new instance from a parsed request head
          *
-         * @param inStream
+         * @param method
+         * @param uri
+         * @param httpVersion
+         * @param headers
+         * @param contentLength
          */
-        HttpRequestImpl(InputStream reqStream) {
-            this.reqStream = reqStream;
-        }
+        HttpRequestImpl(Method method, String uri, HttpVersion httpVersion,
+                HttpHeaders headers, long contentLength) {
 
-        @Override
-        public HttpVersion httpVersion() {
-            return httpVersion;
+            super(headers);
+
+            this.method = method;
+            this.uri = uri;
+            this.httpVersion = httpVersion;
+            this.contentLength = contentLength;
         }
 
-        @Override
-        public final Method method() {
-            return method;
+        /**
+         * Set the raw stream of the connection the body is read from
+         *
+         * @param bodySource
+         */
+        void bodySource(InputStream bodySource) {
+            this.bodySource = bodySource;
         }
 
-        @Override
-        public final String uri() {
-            return uri;
+        /**
+         * Set the route pattern this request matches
+         *
+         * @param route
+         */
+        void route(String route) {
+            this.route = route;
         }
 
         @Override
-        public String toString() {
-            return (method == null ? "null" : method.name()) + ' ' + uri + ' '
-                    + (httpVersion == null ? "null" : httpVersion.toString());
+        public String route() {
+            return route;
         }
 
         /**
-         * Parse request line from the request stream
+         * Set the parameters captured by the route of this request
          *
-         * @throws IOException
+         * @param names
+         * @param values
          */
-        void parseRequestLine() throws IOException {
-            if (null == (method = Method.parse(reqStream))) {
-                return;
-            }
+        void params(String[] names, String[] values) {
+            paramNames = names;
+            paramValues = values;
+        }
 
-            if (null == (uri = parseRequestURI())) {
-                return;
+        @Override
+        public String param(String name) {
+            if (null != paramNames) {
+                for (int i = 0; i < paramNames.length; i++) {
+                    if (paramNames[i].equals(name)) {
+                        return paramValues[i];
+                    }
+                }
             }
 
-            httpVersion = HttpVersion.parse(reqStream);
+            return null;
         }
 
-        /**
-         * Parse the request URI from the request stream
-         *
-         * @return
-         * @throws IOException
-         */
-        String parseRequestURI() throws IOException {
-            byte[] buf = new byte[1024];
-            int i = 0;
-            int b;
-            while (-1 != (b = reqStream.read())) {
-                if (32 == b) {
-                    byte[] uri = new byte[i];
-                    System.arraycopy(buf, 0, uri, 0, i);
-                    return new String(uri);
-                }
+        @Override
+        public long contentLength() {
+            return contentLength;
+        }
 
-                buf[i++] = (byte) b;
+        @Override
+        public InputStream bodyStream() {
+            if (null == bodyStream) {
+                if (0 == contentLength || null == bodySource) {
+                    bodyStream = InputStream.nullInputStream();
+                } else if (-1 == contentLength) {
+                    bodyStream = new ChunkedInputStream(bodySource);
+                } else {
+                    bodyStream = new FixedLengthInputStream(bodySource,
+                            contentLength);
+                }
             }
 
-            return null;
+            return bodyStream;
+        }
+
+        @Override
+        public HttpVersion httpVersion() {
+            return httpVersion;
+        }
+
+        @Override
+        public final Method method() {
+            return method;
+        }
+
+        @Override
+        public final String uri() {
+            return uri;
+        }
+
+        @Override
+        public String toString() {
+            return method.name() + ' ' + uri + ' '
+                    + (httpVersion == null ? "null" : httpVersion.toString());
         }
     }
 }
@@ -0,0 +1,531 @@
+package nn1211.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import nn1211.http.HttpRequest.HttpRequestImpl;
+import nn1211.http.HttpRequest.Method;
+import nn1211.http.HttpResponse.StatusCode;
+
+/**
+ * An incremental parser of the requests of a connection. Bytes are buffered in
+ * a reusable buffer, either fed from a channel or read from a stream, and each
+ * request head (request line and headers) is parsed in one pass once it is
+ * complete. Headers are kept as offsets into a copy of the head until
+ * accessed. The body of a request is not parsed: it is read from the stream
+ * attached with {@link #attachBody(HttpRequest, InputStream)}.
+ *
+ * @author nn1211
+ *
+ */
+public final class HttpRequestParser {
+
+    /**
+     * Default maximum length of a request line
+     */
+    public static final int DEFAULT_MAX_REQUEST_LINE_LENGTH = 8192;
+
+    /**
+     * Default maximum size of the header block of a request
+     */
+    public static final int DEFAULT_MAX_HEADER_SIZE = 16384;
+
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int MIN_READ = 512;
+
+    private static final byte CR = 13;
+    private static final byte LF = 10;
+    private static final byte SP = 32;
+    private static final byte HT = 9;
+    private static final byte COLON = 58;
+
+    /**
+     * Whether each ASCII character may appear in a header name (tchar)
+     */
+    private static final boolean[] TOKEN = new boolean[128];
+
+    static {
+        for (int c = '0'; c <= '9'; c++) {
+            TOKEN[c] = true;
+        }
+        for (int c = 'A'; c <= 'Z'; c++) {
+            TOKEN[c] = TOKEN[c + 32] = true;
+        }
+        for (char c : "!#$%&'*+-.^_`|~".toCharArray()) {
+            TOKEN[c] = true;
+        }
+    }
+
+    private final int maxRequestLineLength;
+    private final int maxHeaderSize;
+
+    private byte[] buf;
+    private int pos;
+    private int limit;
+
+    /**
+     * Position from which the end of the current head is searched
+     */
+    private int scanned;
+    private StatusCode error;
+
+    /**
+     * Create a parser with the default limits
+     */
+    public HttpRequestParser() {
+        this(DEFAULT_MAX_REQUEST_LINE_LENGTH, DEFAULT_MAX_HEADER_SIZE);
+    }
+
+    /**
+     * Create a parser with given limits
+     *
+     * @param maxRequestLineLength
+     * @param maxHeaderSize
+     * @throws IllegalArgumentException if a limit is not positive
+     */
+    public HttpRequestParser(int maxRequestLineLength, int maxHeaderSize)
+            throws IllegalArgumentException {
+
+        if (maxRequestLineLength < 1 || maxHeaderSize < 1) {
+            throw new IllegalArgumentException("Limits must be positive");
+        }
+
+        this.maxRequestLineLength = maxRequestLineLength;
+        this.maxHeaderSize = maxHeaderSize;
+    }
+
+    /**
+     * Buffer the remaining bytes of a {@link ByteBuffer}
+     *
+     * @param src
+     */
+    public void feed(ByteBuffer src) {
+        int n = src.remaining();
+        ensureCapacity(n);
+
+        src.get(buf, limit, n);
+        limit += n;
+    }
+
+    /**
+     * Buffer the bytes of one read from a stream
+     *
+     * @param inStream
+     * @return the number of bytes read, or -1 at the end of the stream
+     * @throws IOException
+     */
+    public int fill(InputStream inStream) throws IOException {
+        ensureCapacity(MIN_READ);
+
+        int n = inStream.read(buf, limit, buf.length - limit);
+        if (0 < n) {
+            limit += n;
+        }
+
+        return n;
+    }
+
+    /**
+     * Determine if some bytes are buffered but not parsed yet
+     *
+     * @return {@code true} if bytes are pending
+     */
+    public boolean hasRemaining() {
+        return limit > pos;
+    }
+
+    /**
+     * Get the reason the buffered bytes couldn't be parsed
+     *
+     * @return null or the status of the response to send before closing the
+     * connection
+     */
+    public StatusCode error() {
+        return error;
+    }
+
+    /**
+     * Take the buffered bytes not parsed yet, such as the beginning of a
+     * request body
+     *
+     * @return a view of the taken bytes, only valid until bytes are buffered
+     * again
+     */
+    public ByteBuffer take() {
+        if (null == buf) {
+            return ByteBuffer.allocate(0);
+        }
+
+        ByteBuffer taken = ByteBuffer.wrap(buf, pos, limit - pos);
+        pos = scanned = limit;
+
+        return taken;
+    }
+
+    /**
+     * Get a stream reading the buffered bytes not parsed yet, then the bytes
+     * of a source stream. This is the stream request bodies are read from
+     * with the blocking engine.
+     *
+     * @param source
+     * @return a stream of the remaining bytes of the connection
+     */
+    public InputStream asInputStream(InputStream source) {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                if (limit > pos) {
+                    return buf[pos++] & 255;
+                }
+
+                return source.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (limit > pos) {
+                    int n = Math.min(len, limit - pos);
+                    System.arraycopy(buf, pos, b, off, n);
+                    pos += n;
+
+                    return n;
+                }
+
+                return source.read(b, off, len);
+            }
+
+            @Override
+            public int available() throws IOException {
+                return limit - pos + source.available();
+            }
+        };
+    }
+
+    /**
+     * Set the stream the body of a request parsed by this parser is read from
+     *
+     * @param req
+     * @param source
+     */
+    public void attachBody(HttpRequest req, InputStream source) {
+        ((HttpRequestImpl) req).bodySource(source);
+    }
+
+    /**
+     * Drop the buffer while no bytes are pending, so that idle connections
+     * don't hold memory
+     */
+    public void release() {
+        if (limit == pos) {
+            buf = null;
+            pos = limit = scanned = 0;
+        }
+    }
+
+    /**
+     * Parse the next request of the buffered bytes
+     *
+     * @return null if the next request head is incomplete or invalid (see
+     * {@link #error()}), a {@link HttpRequest} otherwise
+     */
+    public HttpRequest next() {
+        if (null != error || null == buf) {
+            return null;
+        }
+
+        // Ignore empty lines preceding a request line
+        while (pos < limit && (CR == buf[pos] || LF == buf[pos])) {
+            pos++;
+        }
+        scanned = Math.max(scanned, pos);
+
+        int end = headEnd();
+        if (-1 == end) {
+            int pending = limit - pos;
+            if (-1 == indexOf(buf, LF, pos, limit)) {
+                if (pending > maxRequestLineLength) {
+                    error = StatusCode.URI_TOO_LONG;
+                }
+            } else if (pending > maxRequestLineLength + maxHeaderSize) {
+                error = StatusCode.REQUEST_HEADER_FIELDS_TOO_LARGE;
+            }
+
+            return null;
+        }
+
+        int start = pos;
+        pos = scanned = end;
+
+        return parseHead(start, end);
+    }
+
+    /**
+     * Find the end of the current head, the position right after the empty
+     * line ending it
+     *
+     * @return -1 if the head is not complete yet
+     */
+    private int headEnd() {
+        for (int i = scanned; i < limit; i++) {
+            if (LF != buf[i]) {
+                continue;
+            }
+
+            if (i - 1 >= pos && LF == buf[i - 1]
+                    || i - 2 >= pos && CR == buf[i - 1] && LF == buf[i - 2]) {
+                return i + 1;
+            }
+        }
+
+        scanned = limit;
+        return -1;
+    }
+
+    /**
+     * Parse a complete request head
+     *
+     * @param start
+     * @param end
+     * @return null if invalid, a {@link HttpRequest} otherwise
+     */
+    private HttpRequest parseHead(int start, int end) {
+        int lineEnd = indexOf(buf, LF, start, end);
+        int lineLimit = trimCR(buf, start, lineEnd);
+        if (lineLimit - start > maxRequestLineLength) {
+            return fail(StatusCode.URI_TOO_LONG);
+        }
+
+        int methodEnd = indexOf(buf, SP, start, lineLimit);
+        if (-1 == methodEnd || methodEnd == start) {
+            return fail(StatusCode.BAD_REQUEST);
+        }
+
+        int uriEnd = indexOf(buf, SP, methodEnd + 1, lineLimit);
+        if (-1 == uriEnd || uriEnd == methodEnd + 1) {
+            return fail(StatusCode.BAD_REQUEST);
+        }
+
+        Method method = Method.parse(buf, start, methodEnd - start);
+        String uri = new String(buf, methodEnd + 1, uriEnd - methodEnd - 1,
+                StandardCharsets.ISO_8859_1);
+        HttpVersion httpVersion = HttpVersion.parse(buf, uriEnd + 1,
+                lineLimit - uriEnd - 1);
+        if (null == httpVersion) {
+            // A space in the URI leaves one in the version
+            return fail(isVersion(buf, uriEnd + 1, lineLimit)
+                    ? StatusCode.HTTP_VERSION_NOT_SUPPORTED
+                    : StatusCode.BAD_REQUEST);
+        }
+
+        int headerStart = lineEnd + 1;
+        if (end - headerStart > maxHeaderSize) {
+            return fail(StatusCode.REQUEST_HEADER_FIELDS_TOO_LARGE);
+        }
+
+        byte[] data = Arrays.copyOfRange(buf, headerStart, end);
+        int[] offsets = new int[32];
+        int size = 0;
+        for (int i = 0; i < data.length;) {
+            int lf = indexOf(data, LF, i, data.length);
+            int e = trimCR(data, i, lf);
+            if (e == i) {
+                break; // The empty line ending the head
+            }
+
+            int colon = indexOf(data, COLON, i, e);
+            if (-1 == colon || colon == i || !isToken(data, i, colon)) {
+                return fail(StatusCode.BAD_REQUEST);
+            }
+
+            int valueStart = colon + 1;
+            while (valueStart < e
+                    && (SP == data[valueStart] || HT == data[valueStart])) {
+                valueStart++;
+            }
+
+            int valueEnd = e;
+            while (valueEnd > valueStart
+                    && (SP == data[valueEnd - 1] || HT == data[valueEnd - 1])) {
+                valueEnd--;
+            }
+
+            if (offsets.length == size * 4) {
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            }
+
+            offsets[size * 4] = i;
+            offsets[size * 4 + 1] = colon;
+            offsets[size * 4 + 2] = valueStart;
+            offsets[size * 4 + 3] = valueEnd;
+            size++;
+
+            i = lf + 1;
+        }
+
+        RawHeaders raw = new RawHeaders(data, offsets, size);
+        HttpHeaders headers = new HttpHeaders(raw);
+
+        long contentLength = contentLength(raw, headers);
+        if (-2 == contentLength) {
+            return fail(StatusCode.BAD_REQUEST);
+        }
+
+        return new HttpRequestImpl(method, uri, httpVersion, headers,
+                contentLength);
+    }
+
+    /**
+     * Determine how the body of a request is framed. A request carrying both
+     * a Transfer-Encoding and a Content-Length, or several of either, is
+     * rejected rather than guessing which one the sender meant.
+     *
+     * @param raw the parsed header block
+     * @param headers the headers over it
+     * @return -1 for a chunked body, -2 if the framing is invalid, the length
+     * of the body otherwise
+     */
+    private static long contentLength(RawHeaders raw, HttpHeaders headers) {
+        int lengths = raw.count(HttpHeader.Name.CONTENT_LENGTH);
+        if (1 < lengths || 1 < raw.count(HttpHeader.Name.TRANSFER_ENCODING)) {
+            return -2;
+        }
+
+        HttpHeader transferEncoding = headers
+                .get(HttpHeader.Name.TRANSFER_ENCODING);
+        if (null != transferEncoding) {
+            if (0 != lengths) {
+                return -2;
+            }
+
+            // The body length is unknown unless chunked is the last coding
+            String value = transferEncoding.value();
+            int i = value.lastIndexOf(',');
+            return "chunked".equalsIgnoreCase(value.substring(i + 1).trim())
+                    ? -1 : -2;
+        }
+
+        HttpHeader contentLength = headers.get(HttpHeader.Name.CONTENT_LENGTH);
+        if (null == contentLength) {
+            return 0;
+        }
+
+        String value = contentLength.value();
+        if (value.isEmpty() || 18 < value.length()) {
+            return -2;
+        }
+
+        long length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return -2;
+            }
+            length = length * 10 + c - '0';
+        }
+
+        return length;
+    }
+
+    /**
+     * Determine if a version token is well-formed, as {@code HTTP/x.y}
+     *
+     * @param data
+     * @param start
+     * @param end
+     * @return {@code true} for a well-formed version, even if unsupported
+     */
+    private static boolean isVersion(byte[] data, int start, int end) {
+        byte[] prefix = {'H', 'T', 'T', 'P', '/'};
+        if (end - start != prefix.length + 3 || '.' != data[end - 2]
+                || !isDigit(data[end - 3]) || !isDigit(data[end - 1])) {
+            return false;
+        }
+
+        for (int i = 0; i < prefix.length; i++) {
+            if (prefix[i] != data[start + i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    /**
+     * Determine if a header name is a token
+     *
+     * @param data
+     * @param start
+     * @param end
+     * @return {@code true} if every character is a tchar
+     */
+    private static boolean isToken(byte[] data, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (data[i] < 0 || !TOKEN[data[i]]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private HttpRequest fail(StatusCode statusCode) {
+        error = statusCode;
+        return null;
+    }
+
+    /**
+     * Make room for at least a number of bytes after the buffered ones
+     *
+     * @param n
+     */
+    private void ensureCapacity(int n) {
+        if (null == buf) {
+            buf = new byte[Math.max(INITIAL_CAPACITY, n)];
+            return;
+        }
+
+        if (buf.length - limit >= n) {
+            return;
+        }
+
+        if (0 < pos) { // Compact
+            System.arraycopy(buf, pos, buf, 0, limit - pos);
+            limit -= pos;
+            scanned -= pos;
+            pos = 0;
+        }
+
+        if (buf.length - limit < n) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, limit + n));
+        }
+    }
+
+    private static int indexOf(byte[] data, byte b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (b == data[i]) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Exclude the CR preceding a LF from a line
+     *
+     * @param data
+     * @param start
+     * @param lf
+     * @return the end of the line content
+     */
+    private static int trimCR(byte[] data, int start, int lf) {
+        return lf > start && CR == data[lf - 1] ? lf - 1 : lf;
+    }
+}
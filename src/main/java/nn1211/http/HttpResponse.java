@@ -1,6 +1,9 @@
 package nn1211.http;
 
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import nn1211.http.Content.BufferContent;
 
 /**
  * A simple HTTP response
@@ -10,14 +13,49 @@ import java.util.List;
  */
 public interface HttpResponse extends HttpMessage {
 
+    /**
+     * Returns a HTTP status 200 response to an OPTIONS request
+     *
+     * @param methods the methods allowed on the target resource
+     * @return a HTTP status 200 response with an Allow header
+     */
+    public static HttpResponse allow(HttpRequest.Method... methods) {
+        StringBuilder allowed = new StringBuilder();
+        for (HttpRequest.Method method : methods) {
+            if (0 < allowed.length()) {
+                allowed.append(", ");
+            }
+            allowed.append(method.name());
+        }
+
+        HttpResponseImpl resp = new HttpResponseImpl(StatusCode.OK);
+        resp.headers()
+                .put(HttpHeader.from(HttpHeader.Name.ALLOW, allowed.toString()))
+                .put(HttpHeader.buildContentLength(0));
+
+        return resp;
+    }
+
     /**
      * Returns a HTTP status 400 response
      *
      * @return a HTTP status 400 response
      */
     public static HttpResponse badRequest() {
-        return new HttpResponseImpl(StatusCode.BAD_REQUEST,
-                Content.text(StatusCode.BAD_REQUEST.reasonPhrase()));
+        return error(StatusCode.BAD_REQUEST);
+    }
+
+    /**
+     * Returns a response of a given status whose content is the reason
+     * phrase, see {@link FrozenResponse#error(StatusCode)} for a shared one
+     * which can't be changed
+     *
+     * @param statusCode
+     * @return a HTTP response of the given status
+     */
+    public static HttpResponse error(StatusCode statusCode) {
+        return new HttpResponseImpl(statusCode,
+                Content.text(statusCode.reasonPhrase()));
     }
 
     /**
@@ -26,8 +64,7 @@ public interface HttpResponse extends HttpMessage {
      * @return a HTTP status 403 response
      */
     public static HttpResponse forbidden() {
-        return new HttpResponseImpl(StatusCode.BAD_REQUEST,
-                Content.text(StatusCode.BAD_REQUEST.reasonPhrase()));
+        return error(StatusCode.FORBIDDEN);
     }
 
     /**
@@ -36,8 +73,7 @@ public interface HttpResponse extends HttpMessage {
      * @return a HTTP status 405 response
      */
     public static HttpResponse methodNotAllowed() {
-        return new HttpResponseImpl(StatusCode.METHOD_NOT_ALLOWED,
-                Content.text(StatusCode.METHOD_NOT_ALLOWED.reasonPhrase()));
+        return error(StatusCode.METHOD_NOT_ALLOWED);
     }
 
     /**
@@ -46,8 +82,7 @@ public interface HttpResponse extends HttpMessage {
      * @return a HTTP status 404 response
      */
     public static HttpResponse notFound() {
-        return new HttpResponseImpl(StatusCode.NOT_FOUND,
-                Content.text(StatusCode.NOT_FOUND.reasonPhrase()));
+        return error(StatusCode.NOT_FOUND);
     }
 
     /**
@@ -56,8 +91,42 @@ public interface HttpResponse extends HttpMessage {
      * @return a HTTP status 501 response
      */
     public static HttpResponse notImplemented() {
-        return new HttpResponseImpl(StatusCode.NOT_IMPLEMENTED,
-                Content.text(StatusCode.NOT_IMPLEMENTED.reasonPhrase()));
+        return error(StatusCode.NOT_IMPLEMENTED);
+    }
+
+    /**
+     * Returns a HTTP status 304 response, without body
+     *
+     * @return a HTTP status 304 response
+     */
+    public static HttpResponse notModified() {
+        return new HttpResponseImpl(StatusCode.NOT_MODIFIED);
+    }
+
+    /**
+     * Returns a HTTP status 206 response carrying parts of a resource
+     *
+     * @param content the requested ranges of the resource
+     * @return a HTTP status 206 response
+     */
+    public static HttpResponse partialContent(Content content) {
+        return new HttpResponseImpl(StatusCode.PARTIAL_CONTENT, content);
+    }
+
+    /**
+     * Returns a HTTP status 416 response
+     *
+     * @param length the length of the resource
+     * @return a HTTP status 416 response
+     */
+    public static HttpResponse rangeNotSatisfiable(long length) {
+        HttpResponseImpl resp = new HttpResponseImpl(
+                StatusCode.RANGE_NOT_SATISFIABLE,
+                Content.text(StatusCode.RANGE_NOT_SATISFIABLE.reasonPhrase()));
+        resp.headers().put(HttpHeader.from(HttpHeader.Name.CONTENT_RANGE,
+                "bytes */" + length));
+
+        return resp;
     }
 
     /**
@@ -70,14 +139,29 @@ public interface HttpResponse extends HttpMessage {
         return new HttpResponseImpl(content);
     }
 
+    /**
+     * Returns a HTTP status 200 response carrying the headers of a content
+     * without its body, such as the response to a HEAD request
+     *
+     * @param type the type of the content
+     * @param contentLength the length of the content
+     * @return a HTTP status 200 response without body
+     */
+    public static HttpResponse ok(Content.Type type, long contentLength) {
+        HttpResponseImpl resp = new HttpResponseImpl(StatusCode.OK);
+        resp.headers().put(HttpHeader.buildContentType(type))
+                .put(HttpHeader.buildContentLength(contentLength));
+
+        return resp;
+    }
+
     /**
      * Returns a HTTP status 415 response
      *
      * @return a HTTP status 415 response
      */
     public static HttpResponse unsupportedMediaType() {
-        return new HttpResponseImpl(StatusCode.UNSUPPORTED_MEDIA_TYPE,
-                Content.text(StatusCode.UNSUPPORTED_MEDIA_TYPE.reasonPhrase()));
+        return error(StatusCode.UNSUPPORTED_MEDIA_TYPE);
     }
 
     /**
@@ -94,6 +178,45 @@ public interface HttpResponse extends HttpMessage {
      */
     byte[] toBytes();
 
+    /**
+     * Convert the status line and headers of this to a byte array, as sent
+     * back to a HEAD request
+     *
+     * @return a byte array
+     */
+    byte[] headBytes();
+
+    /**
+     * Convert this to the buffers written to a connection with a single
+     * gathering write: the status line, the header block and the body, which
+     * is not copied. A streamed body is produced in memory and framed as a
+     * single chunk, servers send it as it is produced instead.
+     *
+     * @param includeBody whether the body, if any, is included
+     * @return the buffers of this response
+     */
+    ByteBuffer[] toBuffers(boolean includeBody);
+
+    /**
+     * Serialize this once to be sent back to any number of requests, see
+     * {@link FrozenResponse#of(HttpResponse)}
+     *
+     * @return a frozen copy of this
+     * @throws IllegalArgumentException if the body is a file or is streamed
+     */
+    default FrozenResponse freeze() throws IllegalArgumentException {
+        return FrozenResponse.of(this);
+    }
+
+    /**
+     * Get this as a {@link FrozenResponse}
+     *
+     * @return null if this is not a {@link FrozenResponse}
+     */
+    default FrozenResponse asFrozenResponse() {
+        return null;
+    }
+
     /**
      * Supported HTTP status codes
      *
@@ -104,11 +227,24 @@ public interface HttpResponse extends HttpMessage {
         BAD_REQUEST(400, "Bad Request"), FORBIDDEN(403, "Forbidden"),
         METHOD_NOT_ALLOWED(405, "Method Not Allowed"),
         NOT_FOUND(404, "Not Found"), NOT_IMPLEMENTED(501, "Not Implemented"),
-        UNSUPPORTED_MEDIA_TYPE(415, "Unsupported Media Type"), OK(200, "OK");
+        NOT_MODIFIED(304, "Not Modified"),
+        PAYLOAD_TOO_LARGE(413, "Payload Too Large"),
+        PARTIAL_CONTENT(206, "Partial Content"),
+        RANGE_NOT_SATISFIABLE(416, "Range Not Satisfiable"),
+        UNSUPPORTED_MEDIA_TYPE(415, "Unsupported Media Type"), OK(200, "OK"),
+        URI_TOO_LONG(414, "URI Too Long"),
+        REQUEST_HEADER_FIELDS_TOO_LARGE(431, "Request Header Fields Too Large"),
+        INTERNAL_SERVER_ERROR(500, "Internal Server Error"),
+        HTTP_VERSION_NOT_SUPPORTED(505, "HTTP Version Not Supported");
 
         private final int code;
         private final String reasonPhrase;
 
+        /**
+         * The HTTP/1.1 status line of this status code, CRLF included
+         */
+        private final byte[] statusLine;
+
         /**
          * Initialize code and reason phrase of this status code
          *
@@ -118,6 +254,9 @@ public interface HttpResponse extends HttpMessage {
         StatusCode(int code, String reasonPharse) {
             this.code = code;
             this.reasonPhrase = reasonPharse;
+
+            statusLine = (HttpVersion.V1_1 + " " + code + " " + reasonPharse
+                    + "\r\n").getBytes(StandardCharsets.US_ASCII);
         }
 
         /**
@@ -152,11 +291,6 @@ public interface HttpResponse extends HttpMessage {
      */
     static class HttpResponseImpl extends BaseMessage implements HttpResponse {
 
-        /**
-         * Only supports HTTP/1.1 only
-         */
-        private static final byte[] HTTP_V1_1 = HttpVersion.V1_1.toBytes();
-
         private final StatusCode statusCode;
 
         /**
@@ -198,69 +332,83 @@ public interface HttpResponse extends HttpMessage {
 
         @Override
         public byte[] toBytes() {
-            byte[] reasonPhrase = statusCode.reasonPhrase().getBytes();
-
-            int dataLength = HTTP_V1_1.length + 5 + reasonPhrase.length + 2;
-
-            byte[][] headersData;
-            if (headers().isEmpty()) {
-                headersData = new byte[0][];
-            } else {
-                List<HttpHeader> headers = headers().asList();
-                headersData = new byte[headers.size()][];
-                for (int i = 0; i < headers.size(); i++) {
-                    byte[] headerData = headers.get(i).toBytes();
-                    headersData[i] = headerData;
-                    dataLength += headerData.length + 2;
-                }
-            }
+            return toBytes(true);
+        }
 
-            dataLength += 2;
+        @Override
+        public byte[] headBytes() {
+            return toBytes(false);
+        }
 
-            byte[] bodyData = {};
-            boolean hasBody;
-            if (hasBody = (null != body())) {
-                bodyData = body().toBytes();
-                dataLength += bodyData.length;
+        @Override
+        public ByteBuffer[] toBuffers(boolean includeBody) {
+            ByteBuffer statusLine = ByteBuffer.wrap(statusCode.statusLine);
+            ByteBuffer headerBlock = ByteBuffer.wrap(headerBlock());
+            if (!includeBody || null == body()) {
+                return new ByteBuffer[] {statusLine, headerBlock};
             }
 
-            byte[] data = new byte[dataLength];
-
-            dataLength = HTTP_V1_1.length;
-
-            System.arraycopy(HTTP_V1_1, 0, data, 0, dataLength);
-            data[dataLength++] = 32;
-
-            int code = statusCode.code();
-            data[dataLength++] = (byte) (code / 100 % 10 + 48);
-            data[dataLength++] = (byte) (code / 10 % 10 + 48);
-            data[dataLength++] = (byte) (code % 10 + 48);
-            data[dataLength++] = 32;
+            if (-1 == body().length()) { // Produced in memory, in one chunk
+                byte[] data = body().toBytes();
+                String size = 0 == data.length ? ""
+                        : Integer.toHexString(data.length) + "\r\n";
+                return new ByteBuffer[] {statusLine, headerBlock,
+                    ByteBuffer.wrap(size.getBytes(StandardCharsets.US_ASCII)),
+                    ByteBuffer.wrap(data),
+                    ByteBuffer.wrap((0 == data.length ? "0\r\n\r\n"
+                            : "\r\n0\r\n\r\n")
+                            .getBytes(StandardCharsets.US_ASCII))};
+            }
 
-            System.arraycopy(reasonPhrase, 0, data, dataLength,
-                    reasonPhrase.length);
-            dataLength += reasonPhrase.length;
+            BufferContent buffer = body().asBufferContent();
+            return new ByteBuffer[] {statusLine, headerBlock, null == buffer
+                    ? ByteBuffer.wrap(body().toBytes()) : buffer.buffer()};
+        }
 
-            System.arraycopy(CRLF, 0, data, dataLength, CRLF.length);
-            dataLength += CRLF.length;
+        private byte[] toBytes(boolean includeBody) {
+            ByteBuffer[] buffers = toBuffers(includeBody);
+            int dataLength = 0;
+            for (ByteBuffer buffer : buffers) {
+                dataLength += buffer.remaining();
+            }
 
-            for (byte[] headerData : headersData) {
-                System.arraycopy(headerData, 0, data, dataLength,
-                        headerData.length);
+            ByteBuffer data = ByteBuffer.allocate(dataLength);
+            for (ByteBuffer buffer : buffers) {
+                data.put(buffer);
+            }
 
-                dataLength += headerData.length;
+            return data.array();
+        }
 
-                System.arraycopy(CRLF, 0, data, dataLength, CRLF.length);
-                dataLength += CRLF.length;
+        /**
+         * Join the encoded headers and the empty line ending them, without
+         * intermediate strings
+         *
+         * @return the header block of this response
+         */
+        private byte[] headerBlock() {
+            HttpHeaders headers = headers();
+            if (headers.isEmpty()) {
+                return CRLF;
             }
 
-            System.arraycopy(CRLF, 0, data, dataLength, CRLF.length);
-            dataLength += CRLF.length;
+            int size = headers.size();
+            int dataLength = CRLF.length;
+            for (int i = 0; i < size; i++) {
+                dataLength += headers.get(i).toBytes().length + CRLF.length;
+            }
 
-            if (hasBody) {
-                System.arraycopy(bodyData, 0, data, dataLength,
-                        bodyData.length);
+            byte[] data = new byte[dataLength];
+            dataLength = 0;
+            for (int i = 0; i < size; i++) {
+                byte[] header = headers.get(i).toBytes();
+                System.arraycopy(header, 0, data, dataLength, header.length);
+                dataLength += header.length;
+                data[dataLength++] = 13;
+                data[dataLength++] = 10;
             }
+            data[dataLength++] = 13;
+            data[dataLength] = 10;
 
             return data;
         }
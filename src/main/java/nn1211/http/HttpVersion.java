@@ -11,7 +11,7 @@ import java.io.InputStream;
  */
 public enum HttpVersion {
 
-    V1_1("HTTP/1.1");
+    V1_0("HTTP/1.0"), V1_1("HTTP/1.1");
 
     private final byte[] bytes;
     private final String value;
@@ -27,57 +27,74 @@ public enum HttpVersion {
     }
 
     /**
-     * Parse the HTTP version from the request stream
+     * Parse the HTTP version from the request stream, reading it up to the
+     * end of the request line
      *
      * @param reqStream
      * @return null if invalid or unsupported version. A {@link HttpVersion}
      * object, otherwise.
      * @throws IOException
+     * @deprecated use {@link #parse(byte[], int, int)}
      */
+    @Deprecated
     public static HttpVersion parse(InputStream reqStream)
             throws IOException {
 
-        if (72 != reqStream.read()) {
-            return null;
+        byte[] token = new byte[V1_1.bytes.length + 1];
+        int length = 0;
+        for (int b; 10 != (b = reqStream.read());) {
+            if (-1 == b || length == token.length) {
+                return null;
+            }
+            token[length++] = (byte) b;
         }
 
-        if (84 != reqStream.read()) {
-            return null;
+        if (0 < length && 13 == token[length - 1]) {
+            length--;
         }
 
-        if (84 != reqStream.read()) {
-            return null;
-        }
-
-        if (80 != reqStream.read()) {
-            return null;
-        }
-
-        if (47 != reqStream.read()) {
-            return null;
-        }
-
-        if (49 != reqStream.read()) {
-            return null;
-        }
+        return parse(token, 0, length);
+    }
 
-        if (46 != reqStream.read()) {
-            return null;
+    /**
+     * Parse the HTTP version from the version token of a request line
+     *
+     * @param data
+     * @param offset
+     * @param length
+     * @return null if invalid or unsupported version. A {@link HttpVersion}
+     * object, otherwise.
+     */
+    public static HttpVersion parse(byte[] data, int offset, int length) {
+        for (HttpVersion version : values()) {
+            if (version.matches(data, offset, length)) {
+                return version;
+            }
         }
 
-        if (49 != reqStream.read()) {
-            return null;
-        }
+        return null;
+    }
 
-        if (13 != reqStream.read()) {
-            return null;
+    /**
+     * Compare this version with a version token
+     *
+     * @param data
+     * @param offset
+     * @param length
+     * @return {@code true} if the token is this version
+     */
+    private boolean matches(byte[] data, int offset, int length) {
+        if (bytes.length != length) {
+            return false;
         }
 
-        if (10 != reqStream.read()) {
-            return null;
+        for (int i = 0; i < length; i++) {
+            if (bytes[i] != data[offset + i]) {
+                return false;
+            }
         }
 
-        return V1_1;
+        return true;
     }
 
     /**
@@ -0,0 +1,40 @@
+package nn1211.http;
+
+import java.io.IOException;
+
+import nn1211.http.HttpResponse.StatusCode;
+
+/**
+ * Thrown while reading a request body whose framing sent by the client is
+ * invalid or too large. The request is answered with the status of the
+ * exception rather than with a 500 response, and the connection is closed.
+ *
+ * @author nn1211
+ *
+ */
+public class MalformedBodyException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final StatusCode statusCode;
+
+    /**
+     * Create a new instance
+     *
+     * @param statusCode the status of the response to send
+     * @param message
+     */
+    public MalformedBodyException(StatusCode statusCode, String message) {
+        super(message);
+        this.statusCode = statusCode;
+    }
+
+    /**
+     * Get the status of the response to send
+     *
+     * @return a client error status
+     */
+    public StatusCode statusCode() {
+        return statusCode;
+    }
+}
@@ -0,0 +1,210 @@
+package nn1211.http;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The header block of a parsed request, kept as offsets into the request head
+ * bytes. A {@link HttpHeader} is only created when a header is accessed.
+ *
+ * @author nn1211
+ *
+ */
+final class RawHeaders {
+
+    private final byte[] data;
+
+    /**
+     * Name start, name end, value start and value end of every header
+     */
+    private final int[] offsets;
+    private final int size;
+    private final HttpHeader[] headers;
+
+    /**
+     * Create a new instance over a header block
+     *
+     * @param data
+     * @param offsets
+     * @param size
+     */
+    RawHeaders(byte[] data, int[] offsets, int size) {
+        this.data = data;
+        this.offsets = offsets;
+        this.size = size;
+
+        headers = new HttpHeader[size];
+    }
+
+    /**
+     * Get the number of headers
+     *
+     * @return the number of headers
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Get the header at an index
+     *
+     * @param index
+     * @return the header at the given index
+     */
+    HttpHeader get(int index) {
+        HttpHeader header = headers[index];
+        if (null == header) {
+            header = headers[index] = new RawHeader(index * 4);
+        }
+
+        return header;
+    }
+
+    /**
+     * Find the first header of a given name
+     *
+     * @param name
+     * @return the index of the header or -1
+     */
+    int indexOf(HttpHeader.Name name) {
+        for (int i = 0; i < size; i++) {
+            int offset = i * 4;
+            if (name.matches(data, offsets[offset],
+                    offsets[offset + 1] - offsets[offset])) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Count the headers of a given name
+     *
+     * @param name
+     * @return the number of lines of the given name
+     */
+    int count(HttpHeader.Name name) {
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            int offset = i * 4;
+            if (name.matches(data, offsets[offset],
+                    offsets[offset + 1] - offsets[offset])) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Find the first header of a given name, ignoring case
+     *
+     * @param name
+     * @return the index of the header or -1
+     */
+    int indexOf(String name) {
+        for (int i = 0; i < size; i++) {
+            int offset = i * 4;
+            int start = offsets[offset];
+            if (offsets[offset + 1] - start == name.length()
+                    && matches(start, name)) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Compare a header name of the block with a string, ignoring the case of
+     * ASCII letters
+     *
+     * @param start the start of the header name
+     * @param name a string as long as the header name
+     * @return {@code true} if the header has the given name
+     */
+    private boolean matches(int start, String name) {
+        for (int i = 0; i < name.length(); i++) {
+            int b = data[start + i];
+            int c = name.charAt(i);
+            if (b != c && ((b | 32) != (c | 32) || (c | 32) < 97
+                    || (c | 32) > 122)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * A header of the block, decoded on access
+     *
+     * @author nn1211
+     *
+     */
+    private final class RawHeader implements HttpHeader {
+
+        private final int offset;
+
+        private Name name;
+        private String nameAsString;
+        private String value;
+
+        RawHeader(int offset) {
+            this.offset = offset;
+        }
+
+        @Override
+        public void append(HttpHeader header) throws IllegalArgumentException {
+            if (!nameAsString().equalsIgnoreCase(header.nameAsString())) {
+                throw new IllegalArgumentException(
+                        "Couldn't append other header name");
+            }
+
+            value = value() + "; " + header.value();
+        }
+
+        @Override
+        public Name name() {
+            if (null == name) {
+                name = Name.from(data, offsets[offset],
+                        offsets[offset + 1] - offsets[offset]);
+            }
+
+            return name;
+        }
+
+        @Override
+        public String nameAsString() {
+            if (null == nameAsString) {
+                nameAsString = null == name() ? new String(data,
+                        offsets[offset], offsets[offset + 1] - offsets[offset],
+                        StandardCharsets.US_ASCII) : name.name();
+            }
+
+            return nameAsString;
+        }
+
+        @Override
+        public String value() {
+            if (null == value) {
+                value = new String(data, offsets[offset + 2],
+                        offsets[offset + 3] - offsets[offset + 2],
+                        StandardCharsets.ISO_8859_1);
+            }
+
+            return value;
+        }
+
+        @Override
+        public byte[] toBytes() {
+            return toString().getBytes(StandardCharsets.ISO_8859_1);
+        }
+
+        @Override
+        public String toString() {
+            return (null == name() ? nameAsString() : name.toString()) + ": "
+                    + value();
+        }
+    }
+}
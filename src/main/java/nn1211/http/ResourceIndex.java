@@ -0,0 +1,341 @@
+package nn1211.http;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import nn1211.http.Content.Type;
+
+/**
+ * An index of the resource files served by {@link DefaultHandler}, built when
+ * a server starts by walking the resource directory in parallel, so that the
+ * first requests of each file don't pay for resolving it. Entries are keyed by
+ * request path, directories by their path with and without a trailing slash,
+ * resolved to their {@code index.html} file. Files added later are resolved
+ * on request, as without an index.
+ * <p>
+ * When built along a {@link FileCache} watching the directory, the entries of
+ * changed files are dropped as soon as they change, and the indexed length and
+ * modification time are served without checking the file. Otherwise the file
+ * of an entry is checked on every request.
+ *
+ * @author nn1211
+ *
+ */
+public final class ResourceIndex {
+
+    private final Map<String, Resource> resources;
+    private final long totalLength;
+
+    /**
+     * Whether the entries are dropped as soon as their files change
+     */
+    private final boolean watched;
+
+    /**
+     * An indexed resource file
+     *
+     * @author nn1211
+     *
+     */
+    public static final class Resource {
+
+        private final String uri;
+        private final File file;
+        private final Path path;
+        private final Type type;
+        private final long length;
+        private final long lastModified;
+
+        Resource(String uri, File file, Type type, long length,
+                long lastModified) {
+            this.uri = uri;
+            this.file = file;
+            this.path = file.toPath().toAbsolutePath().normalize();
+            this.type = type;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * Get the request path of this resource
+         *
+         * @return the request path
+         */
+        public String uri() {
+            return uri;
+        }
+
+        /**
+         * Get the file served for this resource
+         *
+         * @return the file
+         */
+        public File file() {
+            return file;
+        }
+
+        /**
+         * Get the content type of this resource
+         *
+         * @return the content type
+         */
+        public Type type() {
+            return type;
+        }
+
+        /**
+         * Get the length of the file when indexed
+         *
+         * @return the length, in bytes
+         */
+        public long length() {
+            return length;
+        }
+
+        /**
+         * Get the modification time of the file when indexed
+         *
+         * @return the modification time, in milliseconds
+         */
+        public long lastModified() {
+            return lastModified;
+        }
+    }
+
+    /**
+     * Index the files of a directory
+     *
+     * @author nn1211
+     *
+     */
+    private static final class IndexTask extends RecursiveTask<List<Resource>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final File dir;
+        private final String uri;
+
+        IndexTask(File dir, String uri) {
+            this.dir = dir;
+            this.uri = uri;
+        }
+
+        @Override
+        protected List<Resource> compute() {
+            File[] children = dir.listFiles();
+            if (null == children) {
+                return Collections.emptyList();
+            }
+
+            List<Resource> found = new ArrayList<>();
+            List<IndexTask> subtasks = new ArrayList<>();
+            for (File child : children) {
+                String childUri = uri + child.getName();
+                if (child.isDirectory()) {
+                    // Linked directories are resolved on request, as they
+                    // may loop
+                    if (!Files.isSymbolicLink(child.toPath())) {
+                        IndexTask subtask = new IndexTask(child,
+                                childUri + '/');
+                        subtask.fork();
+                        subtasks.add(subtask);
+                    }
+                    continue;
+                }
+
+                Type type = Type.from(child.getName());
+                if (null != type && child.isFile() && child.canRead()) {
+                    Resource resource = new Resource(childUri, child, type,
+                            child.length(), child.lastModified());
+                    found.add(resource);
+
+                    if ("index.html".equals(child.getName())) {
+                        String dirUri = uri.substring(0, uri.length() - 1);
+                        found.add(new Resource(uri, child, type,
+                                resource.length, resource.lastModified));
+                        if (!dirUri.isEmpty()) {
+                            found.add(new Resource(dirUri, child, type,
+                                    resource.length, resource.lastModified));
+                        }
+                    }
+                }
+            }
+
+            for (IndexTask subtask : subtasks) {
+                found.addAll(subtask.join());
+            }
+
+            return found;
+        }
+    }
+
+    private ResourceIndex(List<Resource> found, boolean watched) {
+        Map<String, Resource> map = new ConcurrentHashMap<>(found.size() * 2);
+        long total = 0;
+        for (Resource resource : found) {
+            map.put(resource.uri, resource);
+            if (resource.uri.endsWith('/' + resource.file.getName())) {
+                total += resource.length; // Directory aliases not counted
+            }
+        }
+
+        resources = map;
+        totalLength = total;
+        this.watched = watched;
+    }
+
+    /**
+     * Index the files of a resource directory on the common fork-join pool
+     *
+     * @param root the resource directory
+     * @return a new index, whose files are checked on every request
+     */
+    public static ResourceIndex build(File root) {
+        return build(root, null);
+    }
+
+    /**
+     * Index the files of a resource directory on the common fork-join pool,
+     * dropping the entries of the files changed later if a cache watches the
+     * directory, see {@link FileCache#watch(Path)}
+     *
+     * @param root the resource directory
+     * @param cache null or the cache of the resource files
+     * @return a new index
+     */
+    public static ResourceIndex build(File root, FileCache cache) {
+        if (null == cache || !cache.watched()) {
+            return new ResourceIndex(ForkJoinPool.commonPool()
+                    .invoke(new IndexTask(root, "/")), false);
+        }
+
+        // Changes seen during the walk are applied once it is done
+        List<Path> changes = new ArrayList<>();
+        ResourceIndex[] built = new ResourceIndex[1];
+        cache.addChangeListener(changed -> {
+            synchronized (changes) {
+                if (null == built[0]) {
+                    changes.add(changed);
+                    return;
+                }
+            }
+            built[0].changed(changed);
+        });
+
+        ResourceIndex index = new ResourceIndex(ForkJoinPool.commonPool()
+                .invoke(new IndexTask(root, "/")), true);
+        synchronized (changes) {
+            for (Path changed : changes) {
+                index.changed(changed);
+            }
+            built[0] = index;
+        }
+
+        return index;
+    }
+
+    /**
+     * Get the resource of a request path
+     *
+     * @param uri the request path, without query
+     * @return null if the path was not indexed
+     */
+    public Resource get(String uri) {
+        return resources.get(uri);
+    }
+
+    /**
+     * Determine if the entries are dropped as soon as their files change
+     *
+     * @return {@code true} if the indexed metadata can be served without
+     * checking the files
+     */
+    public boolean watched() {
+        return watched;
+    }
+
+    /**
+     * Get the number of indexed request paths
+     *
+     * @return the number of entries, directories included, changed files
+     * excluded
+     */
+    public int size() {
+        return resources.size();
+    }
+
+    /**
+     * Get the total length of the indexed files
+     *
+     * @return the length of the files when indexed, in bytes
+     */
+    public long totalLength() {
+        return totalLength;
+    }
+
+    /**
+     * Load the smallest indexed files into a cache until a budget is spent,
+     * skipping the ones the cache refuses
+     *
+     * @param cache
+     * @param resourcePath the prefix of the cache keys, see
+     * {@link DefaultHandler}
+     * @param budget the maximum total length of the preloaded files, in bytes
+     * @return the number of preloaded request paths
+     */
+    public int preload(FileCache cache, String resourcePath, long budget) {
+        List<Resource> bySize = new ArrayList<>(resources.values());
+        bySize.sort(Comparator.comparingLong(Resource::length));
+
+        int count = 0;
+        for (Resource resource : bySize) {
+            if (resource.length > budget) {
+                break;
+            }
+
+            try {
+                if (null != cache.put(resourcePath + resource.uri,
+                        resource.file, resource.type)) {
+                    budget -= resource.length;
+                    count++;
+                }
+            } catch (IOException ex) {
+                ex.printStackTrace(System.err);
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Drop the entries of a changed file or of the files of a changed
+     * directory
+     *
+     * @param changed null to drop all entries, changes having been missed
+     */
+    private void changed(Path changed) {
+        if (null == changed) {
+            resources.clear();
+            return;
+        }
+
+        Path path = changed.toAbsolutePath().normalize();
+        resources.values().removeIf(resource -> resource.path.startsWith(path));
+    }
+
+    @Override
+    public String toString() {
+        return "ResourceIndex[size=" + size() + ", totalLength="
+                + totalLength() + "]";
+    }
+}
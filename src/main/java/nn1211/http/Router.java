@@ -0,0 +1,298 @@
+package nn1211.http;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A routing tree of the handlers registered for one method. Route patterns are
+ * split in segments: static segments match exactly, {@code {name}} segments
+ * capture any non-empty segment and a final {@code *} segment captures the rest
+ * of the path. Static segments take precedence over captures, which take
+ * precedence over wildcards. Matching a static route doesn't allocate.
+ *
+ * @author nn1211
+ *
+ */
+final class Router {
+
+    /**
+     * The name a wildcard tail is captured under
+     */
+    static final String WILDCARD = "*";
+
+    private static final char SLASH = '/';
+
+    private final Node root = new Node();
+
+    /**
+     * A registered handler and the parameters its pattern captures
+     *
+     * @author nn1211
+     *
+     */
+    static final class Route {
+
+        private final Handler handler;
+        private final String pattern;
+
+        /**
+         * Index of each captured segment in the pattern, the wildcard being
+         * the last one
+         */
+        private final int[] captures;
+        private final String[] names;
+        private final boolean tail;
+
+        Route(Handler handler, String pattern, int[] captures, String[] names,
+                boolean tail) {
+            this.handler = handler;
+            this.pattern = pattern;
+            this.captures = captures;
+            this.names = names;
+            this.tail = tail;
+        }
+
+        /**
+         * Get the handler of this route
+         *
+         * @return the handler of this route
+         */
+        Handler handler() {
+            return handler;
+        }
+
+        /**
+         * Get the pattern of this route
+         *
+         * @return the pattern, with a leading slash
+         */
+        String pattern() {
+            return pattern;
+        }
+
+        /**
+         * Get the names of the parameters captured by this route
+         *
+         * @return the parameter names, empty for a static route
+         */
+        String[] names() {
+            return names;
+        }
+
+        /**
+         * Extract the captured parameters of a path matching this route
+         *
+         * @param path
+         * @param end the end of the path, excluding the query
+         * @return the parameter values, in the order of {@link #names()}
+         */
+        String[] values(String path, int end) {
+            String[] values = new String[captures.length];
+            int segment = 0;
+            int start = 1;
+            for (int i = 0; i < captures.length; i++) {
+                for (; segment < captures[i]; segment++) {
+                    start = path.indexOf(SLASH, start) + 1;
+                }
+
+                if (tail && i == captures.length - 1) {
+                    values[i] = path.substring(Math.min(start, end), end);
+                } else {
+                    int slash = path.indexOf(SLASH, start);
+                    values[i] = path.substring(start,
+                            -1 == slash || slash > end ? end : slash);
+                }
+            }
+
+            return values;
+        }
+    }
+
+    /**
+     * A node of the tree, matching one path segment
+     *
+     * @author nn1211
+     *
+     */
+    private static final class Node {
+
+        /**
+         * Static children, sorted by segment
+         */
+        private String[] segments = {};
+        private Node[] children = {};
+
+        private Node param;
+        private Route wildcard;
+        private Route route;
+
+        Node child(String segment) {
+            int i = Arrays.binarySearch(segments, segment);
+            if (i >= 0) {
+                return children[i];
+            }
+
+            i = -i - 1;
+            Node child = new Node();
+            segments = insert(segments, i, segment);
+            children = insert(children, i, child);
+
+            return child;
+        }
+
+        /**
+         * Find the static child matching a region of a path
+         *
+         * @param path
+         * @param start
+         * @param end
+         * @return null if no static child matches
+         */
+        Node child(String path, int start, int end) {
+            int low = 0;
+            int high = segments.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int cmp = compare(segments[mid], path, start, end);
+                if (cmp < 0) {
+                    low = mid + 1;
+                } else if (cmp > 0) {
+                    high = mid - 1;
+                } else {
+                    return children[mid];
+                }
+            }
+
+            return null;
+        }
+
+        private static int compare(String segment, String path, int start,
+                int end) {
+            int length = Math.min(segment.length(), end - start);
+            for (int i = 0; i < length; i++) {
+                int cmp = segment.charAt(i) - path.charAt(start + i);
+                if (0 != cmp) {
+                    return cmp;
+                }
+            }
+
+            return segment.length() - (end - start);
+        }
+
+        private static <T> T[] insert(T[] array, int i, T element) {
+            T[] result = Arrays.copyOf(array, array.length + 1);
+            System.arraycopy(array, i, result, i + 1, array.length - i);
+            result[i] = element;
+
+            return result;
+        }
+    }
+
+    /**
+     * Register a handler for a route pattern
+     *
+     * @param pattern a path, with or without leading slash
+     * @param handler
+     * @throws IllegalArgumentException if the pattern is invalid
+     */
+    void add(String pattern, Handler handler) throws IllegalArgumentException {
+        String path = pattern.startsWith("/") ? pattern.substring(1) : pattern;
+        String[] segments = path.split("/", -1);
+        if (1 == segments.length && segments[0].isEmpty()) {
+            segments = new String[0]; // The root
+        }
+
+        List<Integer> captures = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        Node node = root;
+        for (int i = 0; i < segments.length; i++) {
+            String segment = segments[i];
+            if (WILDCARD.equals(segment)) {
+                if (i != segments.length - 1) {
+                    throw new IllegalArgumentException(
+                            "A wildcard must end a route: " + pattern);
+                }
+
+                captures.add(i);
+                names.add(WILDCARD);
+                node.wildcard = route(handler, path, captures, names, true);
+                return;
+            }
+
+            if (segment.startsWith("{") && segment.endsWith("}")) {
+                if (segment.length() < 3) {
+                    throw new IllegalArgumentException(
+                            "Unnamed parameter in route: " + pattern);
+                }
+
+                captures.add(i);
+                names.add(segment.substring(1, segment.length() - 1));
+                if (null == node.param) {
+                    node.param = new Node();
+                }
+                node = node.param;
+            } else {
+                node = node.child(segment);
+            }
+        }
+
+        node.route = route(handler, path, captures, names, false);
+    }
+
+    private static Route route(Handler handler, String path,
+            List<Integer> captures, List<String> names, boolean tail) {
+        int[] indexes = new int[captures.size()];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = captures.get(i);
+        }
+
+        return new Route(handler, '/' + path, indexes,
+                names.toArray(new String[0]), tail);
+    }
+
+    /**
+     * Find the route matching a request path
+     *
+     * @param path the request URI, starting with a slash
+     * @param end the end of the path, excluding the query
+     * @return null if no route matches
+     */
+    Route find(String path, int end) {
+        if (end < 1 || SLASH != path.charAt(0)) {
+            return null;
+        }
+
+        if (1 == end) { // The root path
+            return null != root.route ? root.route : root.wildcard;
+        }
+
+        return find(root, path, 1, end);
+    }
+
+    private static Route find(Node node, String path, int start, int end) {
+        if (start > end) { // All segments matched
+            return node.route;
+        }
+
+        int slash = path.indexOf(SLASH, start);
+        int segmentEnd = -1 == slash || slash > end ? end : slash;
+
+        Node child = node.child(path, start, segmentEnd);
+        if (null != child) {
+            Route route = find(child, path, segmentEnd + 1, end);
+            if (null != route) {
+                return route;
+            }
+        }
+
+        if (null != node.param && segmentEnd > start) {
+            Route route = find(node.param, path, segmentEnd + 1, end);
+            if (null != route) {
+                return route;
+            }
+        }
+
+        return node.wildcard;
+    }
+}
@@ -0,0 +1,419 @@
+package nn1211.http.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import nn1211.http.HttpRequest.Method;
+
+/**
+ * An access log of the requests answered by a {@link HttpServer}. Connection
+ * threads only queue entries in a lock-free ring buffer, a background thread
+ * formats them and appends them in batches to a file, which is rolled over
+ * once it reaches a maximum size. When the buffer is full, entries are either
+ * dropped or their threads wait, see {@link Overflow}. If the file can't be
+ * written, the log stops and all further entries are dropped. Entries logged
+ * once the queued ones are written on closing are dropped too, every dropped
+ * entry being counted.
+ * <p>
+ * Each entry is a line of space separated fields: the time the response was
+ * ready, the remote address, the method, the URI, the status code, the body
+ * length ({@code -} if streamed) and the latency from the request head to the
+ * response in microseconds. The method and URI of invalid requests are
+ * {@code -}.
+ *
+ * @author nn1211
+ *
+ */
+public final class AccessLog implements Closeable {
+
+    /**
+     * Default maximum number of queued entries
+     */
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    /**
+     * Default size above which the file is rolled over
+     */
+    public static final long DEFAULT_MAX_FILE_SIZE = 64L * 1024 * 1024;
+
+    /**
+     * Default number of rolled over files kept
+     */
+    public static final int DEFAULT_MAX_FILES = 5;
+
+    /**
+     * Maximum number of entries written at once
+     */
+    private static final int BATCH_SIZE = 512;
+
+    /**
+     * How long the writer sleeps when no entries are queued
+     */
+    private static final long IDLE_WAIT = 10_000_000;
+
+    /**
+     * Set in the tail once the writer stopped, so that no position is claimed
+     * afterwards
+     */
+    private static final long STOPPED = 1L << 62;
+
+    /**
+     * What happens to the entries logged while the buffer is full
+     *
+     * @author nn1211
+     *
+     */
+    public enum Overflow {
+
+        /**
+         * Drop the entry, counted by {@link AccessLog#dropped()}
+         */
+        DROP,
+
+        /**
+         * Wait for the writer to make room, slowing the server down to the
+         * pace of the file
+         */
+        BLOCK
+    }
+
+    /**
+     * A request answered
+     *
+     * @author nn1211
+     *
+     */
+    private static final class Entry {
+
+        private final long time;
+        private final SocketAddress remote;
+        private final Method method;
+        private final String uri;
+        private final int status;
+        private final long bytes;
+        private final long latency;
+
+        Entry(long time, SocketAddress remote, Method method, String uri,
+                int status, long bytes, long latency) {
+            this.time = time;
+            this.remote = remote;
+            this.method = method;
+            this.uri = uri;
+            this.status = status;
+            this.bytes = bytes;
+            this.latency = latency;
+        }
+    }
+
+    private final Path file;
+    private final long maxFileSize;
+    private final int maxFiles;
+    private final Overflow overflow;
+
+    /**
+     * The ring buffer: producers claim a position by advancing the tail then
+     * publish their entry in its slot, the writer takes published entries from
+     * the head and clears their slot before advancing it
+     */
+    private final AtomicReferenceArray<Entry> slots;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+
+    private final Thread writer;
+    private volatile boolean closed;
+
+    private final LongAdder written = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * Only accessed from the writer thread
+     */
+    private FileChannel channel;
+    private long size;
+
+    /**
+     * Position of the first entry not written to the file yet
+     */
+    private long flushed;
+    private final StringBuilder line = new StringBuilder(256);
+    private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+    /**
+     * Create a log appending to a file, with the default limits, dropping
+     * entries when full
+     *
+     * @param file
+     * @throws IOException if the file can't be opened
+     */
+    public AccessLog(Path file) throws IOException {
+        this(file, DEFAULT_CAPACITY, DEFAULT_MAX_FILE_SIZE, DEFAULT_MAX_FILES,
+                Overflow.DROP);
+    }
+
+    /**
+     * Create a log appending to a file
+     *
+     * @param file
+     * @param capacity the maximum number of queued entries, rounded up to a
+     * power of two
+     * @param maxFileSize the size above which the file is rolled over, its
+     * previous versions being suffixed with {@code .1}, {@code .2}...
+     * @param maxFiles the number of rolled over files kept, 0 to truncate the
+     * file instead
+     * @param overflow what happens to entries when the buffer is full
+     * @throws IOException if the file can't be opened
+     * @throws IllegalArgumentException if a limit is invalid
+     */
+    public AccessLog(Path file, int capacity, long maxFileSize, int maxFiles,
+            Overflow overflow) throws IOException, IllegalArgumentException {
+
+        if (capacity < 1 || capacity > 1 << 30 || maxFileSize < 1
+                || maxFiles < 0) {
+            throw new IllegalArgumentException("Invalid access log limits");
+        }
+
+        this.file = file;
+        this.maxFileSize = maxFileSize;
+        this.maxFiles = maxFiles;
+        this.overflow = overflow;
+
+        int slotCount = Integer.highestOneBit(capacity);
+        if (slotCount < capacity) {
+            slotCount <<= 1;
+        }
+        slots = new AtomicReferenceArray<>(slotCount);
+        mask = slotCount - 1;
+
+        open();
+
+        writer = new Thread(this::write, "HttpServer-access-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queue an entry, without blocking unless the buffer is full and the
+     * overflow policy is {@link Overflow#BLOCK}
+     *
+     * @param remote
+     * @param method null for an invalid request
+     * @param uri
+     * @param status
+     * @param bytes the length of the body, -1 if unknown
+     * @param start when the request head was read, see
+     * {@link System#nanoTime()}
+     */
+    void log(SocketAddress remote, Method method, String uri, int status,
+            long bytes, long start) {
+
+        long now = System.nanoTime();
+        Entry entry = new Entry(System.currentTimeMillis(), remote, method,
+                uri, status, bytes, (now - start) / 1000);
+        for (;;) {
+            long t = tail.get();
+            if (0 != (t & STOPPED)) { // Never written
+                dropped.increment();
+                return;
+            }
+
+            if (t - head > mask) { // Full
+                if (Overflow.DROP == overflow || closed) {
+                    dropped.increment();
+                    return;
+                }
+                LockSupport.parkNanos(50_000);
+            } else if (tail.compareAndSet(t, t + 1)) {
+                slots.lazySet((int) t & mask, entry);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Get the number of entries written to the file
+     *
+     * @return the number of written entries
+     */
+    public long written() {
+        return written.sum();
+    }
+
+    /**
+     * Get the number of entries dropped because the buffer was full, the
+     * file couldn't be written, or this log was closed
+     *
+     * @return the number of dropped entries
+     */
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Write the queued entries and close the file
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "AccessLog[file=" + file + ", written=" + written()
+                + ", dropped=" + dropped() + "]";
+    }
+
+    /**
+     * Write queued entries in batches until closed
+     */
+    private void write() {
+        try {
+            for (;;) {
+                int n = drain();
+                if (0 < n) {
+                    written.add(n);
+                    continue;
+                }
+
+                // Stop once every claimed position is written
+                long h = head;
+                if (closed && tail.compareAndSet(h, h | STOPPED)) {
+                    break;
+                }
+                LockSupport.parkNanos(this, IDLE_WAIT);
+            }
+        } catch (IOException ex) {
+            // Stop queueing, so that no thread waits for room
+            closed = true;
+            long t = tail.getAndUpdate(position -> position | STOPPED);
+            dropped.add(t - flushed);
+            ex.printStackTrace(System.err);
+        } finally {
+            HttpServer.closeQuietly(channel);
+        }
+    }
+
+    /**
+     * Write a batch of published entries
+     *
+     * @return the number of written entries
+     * @throws IOException
+     */
+    private int drain() throws IOException {
+        int n = 0;
+        long h = head;
+        for (; n < BATCH_SIZE; n++, h++) {
+            int slot = (int) h & mask;
+            Entry entry = slots.get(slot);
+            if (null == entry) {
+                break; // Empty, or the next entry is not published yet
+            }
+            slots.lazySet(slot, null);
+            head = h + 1;
+
+            format(entry);
+        }
+
+        if (0 < buffer.position()) {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                size += channel.write(buffer);
+            }
+            buffer.clear();
+            flushed = head;
+
+            if (size >= maxFileSize) {
+                roll();
+            }
+        }
+
+        return n;
+    }
+
+    private void format(Entry entry) {
+        line.setLength(0);
+        line.append(Instant.ofEpochMilli(entry.time)).append(' ');
+        if (entry.remote instanceof InetSocketAddress) {
+            InetSocketAddress address = (InetSocketAddress) entry.remote;
+            line.append(address.getAddress().getHostAddress()).append(':')
+                    .append(address.getPort());
+        } else {
+            line.append(entry.remote);
+        }
+        line.append(' ').append(null == entry.method ? "-" : entry.method)
+                .append(' ').append(null == entry.uri ? "-" : entry.uri)
+                .append(' ').append(entry.status).append(' ');
+        if (-1 == entry.bytes) {
+            line.append('-');
+        } else {
+            line.append(entry.bytes);
+        }
+        line.append(' ').append(entry.latency).append('\n');
+
+        byte[] bytes = line.toString().getBytes(StandardCharsets.ISO_8859_1);
+        if (buffer.remaining() < bytes.length) {
+            ByteBuffer larger = ByteBuffer.allocate(
+                    Math.max(buffer.capacity() * 2, buffer.position()
+                            + bytes.length));
+            buffer.flip();
+            buffer = larger.put(buffer);
+        }
+        buffer.put(bytes);
+    }
+
+    private void open() throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        size = channel.size();
+    }
+
+    /**
+     * Shift the rolled over files, the oldest one being deleted, and start a
+     * new file
+     *
+     * @throws IOException
+     */
+    private void roll() throws IOException {
+        channel.close();
+
+        if (0 == maxFiles) {
+            Files.delete(file);
+        } else {
+            Files.deleteIfExists(rolled(maxFiles));
+            for (int i = maxFiles - 1; i >= 1; i--) {
+                Path rolled = rolled(i);
+                if (Files.exists(rolled)) {
+                    Files.move(rolled, rolled(i + 1),
+                            StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            Files.move(file, rolled(1), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        open();
+    }
+
+    private Path rolled(int index) {
+        return file.resolveSibling(file.getFileName() + "." + index);
+    }
+}
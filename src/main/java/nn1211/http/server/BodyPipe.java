@@ -0,0 +1,194 @@
+package nn1211.http.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The bytes of a connection following a request head, pushed by a reactor
+ * thread of the {@link Engine#NIO} engine and read by the handler of the
+ * request from a worker thread. The reactor stops reading the connection
+ * while the pipe is full, so a body never needs more than about
+ * {@code capacity} bytes of memory.
+ *
+ * @author nn1211
+ *
+ */
+final class BodyPipe extends InputStream {
+
+    private final int capacity;
+    private final long timeout;
+    private final Runnable onDrained;
+
+    private byte[] buf;
+    private int pos;
+    private int limit;
+
+    private boolean closed;
+    private boolean paused;
+
+    /**
+     * Create a new pipe
+     *
+     * @param capacity the number of pending bytes above which the writer pauses
+     * @param timeout how long, in milliseconds, a read waits for bytes
+     * @param onDrained run when a paused writer can push bytes again
+     */
+    BodyPipe(int capacity, long timeout, Runnable onDrained) {
+        this.capacity = capacity;
+        this.timeout = timeout;
+        this.onDrained = onDrained;
+    }
+
+    /**
+     * Push the remaining bytes of a buffer
+     *
+     * @param src
+     * @return {@code false} if the pipe is full and the writer has to pause
+     * until notified
+     */
+    synchronized boolean push(ByteBuffer src) {
+        int n = src.remaining();
+        if (null == buf) {
+            buf = new byte[Math.max(n, 4096)];
+        } else if (buf.length - limit < n) {
+            if (0 < pos) {
+                System.arraycopy(buf, pos, buf, 0, limit - pos);
+                limit -= pos;
+                pos = 0;
+            }
+            if (buf.length - limit < n) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, limit + n));
+            }
+        }
+
+        src.get(buf, limit, n);
+        limit += n;
+        notifyAll();
+
+        paused = limit - pos >= capacity;
+        return !paused;
+    }
+
+    /**
+     * Take the bytes not read, once the body is consumed
+     *
+     * @return the remaining bytes
+     */
+    synchronized ByteBuffer takeRemaining() {
+        ByteBuffer remaining = null == buf ? ByteBuffer.allocate(0)
+                : ByteBuffer.wrap(buf, pos, limit - pos);
+        buf = null;
+        pos = limit = 0;
+        paused = false;
+
+        return remaining;
+    }
+
+    /**
+     * Signal the end of the connection to readers
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b;
+        boolean drained;
+        synchronized (this) {
+            if (!await()) {
+                return -1;
+            }
+
+            b = buf[pos++] & 255;
+            drained = resume();
+        }
+
+        if (drained) {
+            onDrained.run();
+        }
+
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (0 == len) {
+            return 0;
+        }
+
+        int n;
+        boolean drained;
+        synchronized (this) {
+            if (!await()) {
+                return -1;
+            }
+
+            n = Math.min(len, limit - pos);
+            System.arraycopy(buf, pos, b, off, n);
+            pos += n;
+
+            drained = resume();
+        }
+
+        if (drained) {
+            onDrained.run();
+        }
+
+        return n;
+    }
+
+    /**
+     * Wait for bytes to read, holding the lock of this pipe
+     *
+     * @return {@code false} if the connection is closed
+     * @throws IOException if no bytes arrive in time
+     */
+    private boolean await() throws IOException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (pos == limit) {
+            if (closed) {
+                return false;
+            }
+
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0) {
+                throw new SocketTimeoutException("Request body timed out");
+            }
+
+            try {
+                wait(wait);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException(ex);
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Determine if a paused writer can push bytes again, holding the lock of
+     * this pipe
+     *
+     * @return {@code true} if the writer has to be notified
+     */
+    private boolean resume() {
+        if (paused && limit - pos < capacity / 2) {
+            paused = false;
+            return true;
+        }
+
+        return false;
+    }
+
+    @Override
+    public synchronized int available() {
+        return limit - pos;
+    }
+}
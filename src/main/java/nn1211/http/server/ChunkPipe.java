@@ -0,0 +1,175 @@
+package nn1211.http.server;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * The chunks of a streamed response, written by its producer on a worker
+ * thread and sent by a reactor thread of the {@link Engine#NIO} engine. The
+ * producer waits while about {@code capacity} bytes are not sent yet, so a
+ * streamed body never needs much more memory than that.
+ *
+ * @author nn1211
+ *
+ */
+final class ChunkPipe implements ChunkedOutputStream.Sink {
+
+    private final int capacity;
+    private final long timeout;
+    private final Runnable onAvailable;
+
+    private final Deque<ByteBuffer> chunks = new ArrayDeque<>();
+    private long pending;
+
+    private boolean finished;
+    private boolean failed;
+    private boolean closed;
+
+    /**
+     * Whether the reader waits for chunks
+     */
+    private boolean starved;
+
+    /**
+     * Create a new pipe
+     *
+     * @param capacity the number of pending bytes above which the producer
+     * waits
+     * @param timeout how long, in milliseconds, the producer waits for the
+     * reader to take a chunk
+     * @param onAvailable run when a starved reader can take chunks again
+     */
+    ChunkPipe(int capacity, long timeout, Runnable onAvailable) {
+        this.capacity = capacity;
+        this.timeout = timeout;
+        this.onAvailable = onAvailable;
+    }
+
+    /**
+     * Queue a chunk, waiting while the pipe is full
+     *
+     * @param buffers
+     * @throws IOException if the reader is closed or takes no chunk in time
+     */
+    @Override
+    public synchronized void write(ByteBuffer[] buffers) throws IOException {
+        long deadline = System.currentTimeMillis() + timeout;
+        long before = pending;
+        while (!closed && pending >= capacity) {
+            if (pending < before) { // The reader makes progress
+                deadline = System.currentTimeMillis() + timeout;
+            }
+            before = pending;
+
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0) {
+                throw new SocketTimeoutException("Response stream timed out");
+            }
+
+            try {
+                wait(wait);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException(ex);
+            }
+        }
+
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+
+        int size = 0;
+        for (ByteBuffer buffer : buffers) {
+            size += buffer.remaining();
+        }
+
+        ByteBuffer chunk = ByteBuffer.allocate(size);
+        for (ByteBuffer buffer : buffers) {
+            chunk.put(buffer);
+        }
+        chunks.add(chunk.flip());
+        pending += size;
+
+        signal();
+    }
+
+    /**
+     * Signal that the last chunk is queued
+     */
+    synchronized void finish() {
+        finished = true;
+        signal();
+    }
+
+    /**
+     * Signal that the producer failed, and the response is incomplete
+     */
+    synchronized void fail() {
+        failed = true;
+        signal();
+    }
+
+    /**
+     * Take the next chunk to send
+     *
+     * @return null if no chunk is queued, the reader being notified once one
+     * is
+     * @throws IOException if the producer failed
+     */
+    synchronized ByteBuffer poll() throws IOException {
+        ByteBuffer chunk = chunks.poll();
+        if (null != chunk) {
+            pending -= chunk.remaining();
+            notifyAll();
+            return chunk;
+        }
+
+        if (failed) {
+            throw new IOException("Response stream failed");
+        }
+
+        starved = !finished;
+        return null;
+    }
+
+    /**
+     * Determine if every chunk was taken
+     *
+     * @return {@code true} if the producer is done and no chunk is queued
+     */
+    synchronized boolean isFinished() {
+        return finished && chunks.isEmpty();
+    }
+
+    /**
+     * Determine if the reader waits for the producer
+     *
+     * @return {@code true} if no chunk was available on the last poll
+     */
+    synchronized boolean isStarved() {
+        return starved;
+    }
+
+    /**
+     * Signal the end of the connection to the producer
+     */
+    synchronized void close() {
+        closed = true;
+        chunks.clear();
+        notifyAll();
+    }
+
+    /**
+     * Notify a starved reader, holding the lock of this pipe
+     */
+    private void signal() {
+        if (starved) {
+            starved = false;
+            onAvailable.run();
+        }
+    }
+}
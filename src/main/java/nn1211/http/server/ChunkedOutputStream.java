@@ -0,0 +1,145 @@
+package nn1211.http.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import nn1211.http.Content.StreamContent;
+
+/**
+ * The body of a {@link StreamContent} response, written by its producer and
+ * sent with the chunked transfer coding. A chunk is sent whenever the buffer
+ * is full or flushed, and large writes are sent as one chunk without being
+ * copied. Clients not speaking HTTP/1.1 get the same bytes without chunk
+ * framing, the end of the body being the end of the connection.
+ *
+ * @author nn1211
+ *
+ */
+final class ChunkedOutputStream extends OutputStream {
+
+    /**
+     * Size of the buffered chunks
+     */
+    static final int CHUNK_SIZE = 8192;
+
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n"
+            .getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Where chunks are sent
+     *
+     * @author nn1211
+     *
+     */
+    @FunctionalInterface
+    interface Sink {
+
+        /**
+         * Send bytes with a single gathering write
+         *
+         * @param buffers only valid until this method returns
+         * @throws IOException
+         */
+        void write(ByteBuffer[] buffers) throws IOException;
+    }
+
+    private final Sink sink;
+    private final boolean chunked;
+    private final byte[] buf = new byte[CHUNK_SIZE];
+    private int count;
+    private boolean closed;
+
+    /**
+     * Create a new stream
+     *
+     * @param sink
+     * @param chunked whether chunk framing is sent, otherwise the body is
+     * delimited by closing the connection
+     */
+    ChunkedOutputStream(Sink sink, boolean chunked) {
+        this.sink = sink;
+        this.chunked = chunked;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if (buf.length == count) {
+            send(buf, 0, count, false);
+            count = 0;
+        }
+
+        buf[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        if (len > buf.length - count) {
+            flush();
+            if (len >= buf.length) {
+                send(b, off, len, false);
+                return;
+            }
+        }
+
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        if (0 < count) {
+            send(buf, 0, count, false);
+            count = 0;
+        }
+    }
+
+    /**
+     * Send the buffered bytes and the last chunk
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+
+        send(buf, 0, count, true);
+        count = 0;
+        closed = true;
+    }
+
+    private void send(byte[] b, int off, int len, boolean last)
+            throws IOException {
+
+        if (!chunked) {
+            if (0 != len) {
+                sink.write(new ByteBuffer[] {ByteBuffer.wrap(b, off, len)});
+            }
+            return;
+        }
+
+        if (0 == len) {
+            sink.write(new ByteBuffer[] {ByteBuffer.wrap(LAST_CHUNK)});
+            return;
+        }
+
+        byte[] size = (Integer.toHexString(len) + "\r\n")
+                .getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer[] buffers = {ByteBuffer.wrap(size),
+            ByteBuffer.wrap(b, off, len), ByteBuffer.wrap(CRLF),
+            ByteBuffer.wrap(LAST_CHUNK)};
+        sink.write(last ? buffers : new ByteBuffer[] {buffers[0], buffers[1],
+            buffers[2]});
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+}
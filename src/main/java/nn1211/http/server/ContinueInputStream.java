@@ -0,0 +1,81 @@
+package nn1211.http.server;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The body source of a request sent with "Expect: 100-continue": the client is
+ * only asked to send the body once the handler starts reading it
+ *
+ * @author nn1211
+ *
+ */
+final class ContinueInputStream extends FilterInputStream {
+
+    /**
+     * Send the interim 100 (Continue) response
+     *
+     * @author nn1211
+     *
+     */
+    @FunctionalInterface
+    interface Trigger {
+
+        /**
+         * Send the interim 100 (Continue) response
+         *
+         * @throws IOException
+         */
+        void sendContinue() throws IOException;
+    }
+
+    private final Trigger trigger;
+
+    private volatile boolean started;
+
+    /**
+     * Create a new instance over the body source of a connection
+     *
+     * @param source
+     * @param trigger
+     */
+    ContinueInputStream(InputStream source, Trigger trigger) {
+        super(source);
+
+        this.trigger = trigger;
+    }
+
+    /**
+     * Determine if the handler started reading the body
+     *
+     * @return {@code true} if the client was asked to send the body
+     */
+    boolean started() {
+        return started;
+    }
+
+    @Override
+    public int read() throws IOException {
+        start();
+        return super.read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        start();
+        return super.read(b, off, len);
+    }
+
+    @Override
+    public void close() {
+        // The connection stream is owned by the server
+    }
+
+    private void start() throws IOException {
+        if (!started) {
+            started = true;
+            trigger.sendContinue();
+        }
+    }
+}
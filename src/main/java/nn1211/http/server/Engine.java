@@ -0,0 +1,19 @@
+package nn1211.http.server;
+
+/**
+ * Supported connection handling engines of a {@link HttpServer}
+ *
+ * @author nn1211
+ *
+ */
+public enum Engine {
+
+    /**
+     * Blocking accept with a dedicated thread per connection
+     */
+    BLOCKING,
+    /**
+     * Non-blocking channels multiplexed on a few selector (reactor) threads
+     */
+    NIO;
+}
@@ -0,0 +1,99 @@
+package nn1211.http.server;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decide which threads run the connections and requests of a
+ * {@link HttpServer}
+ *
+ * @author nn1211
+ *
+ */
+@FunctionalInterface
+public interface ExecutorStrategy {
+
+    /**
+     * Start a new platform thread for every task (the historical behavior)
+     *
+     * @return a {@link ExecutorStrategy}
+     */
+    static ExecutorStrategy threadPerConnection() {
+        return name -> {
+            AtomicInteger count = new AtomicInteger();
+            return task -> new Thread(task, name + "-" + count.incrementAndGet())
+                    .start();
+        };
+    }
+
+    /**
+     * Run tasks on a fixed number of platform threads, queueing the others
+     *
+     * @param threads
+     * @return a {@link ExecutorStrategy}
+     * @throws IllegalArgumentException if the number is less than 1
+     */
+    static ExecutorStrategy boundedPool(int threads)
+            throws IllegalArgumentException {
+
+        if (threads < 1) {
+            throw new IllegalArgumentException(
+                    "At least one thread is required");
+        }
+
+        return name -> {
+            AtomicInteger count = new AtomicInteger();
+            return new ThreadPoolExecutor(threads, threads, 0L,
+                    TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                    task -> new Thread(task,
+                            name + "-" + count.incrementAndGet()));
+        };
+    }
+
+    /**
+     * Start a new virtual thread for every task. Requires a JDK 21+ runtime.
+     *
+     * @return a {@link ExecutorStrategy}
+     * @throws UnsupportedOperationException if the runtime doesn't support
+     * virtual threads
+     */
+    static ExecutorStrategy virtualThreads()
+            throws UnsupportedOperationException {
+
+        MethodHandle factory;
+        try {
+            // Looked up reflectively so that we still build for Java 11
+            factory = MethodHandles.publicLookup().findStatic(
+                    java.util.concurrent.Executors.class,
+                    "newVirtualThreadPerTaskExecutor",
+                    MethodType.methodType(ExecutorService.class));
+        } catch (NoSuchMethodException | IllegalAccessException ex) {
+            throw new UnsupportedOperationException(
+                    "Virtual threads require Java 21 or later", ex);
+        }
+
+        return name -> {
+            try {
+                return (ExecutorService) factory.invokeExact();
+            } catch (Throwable ex) {
+                throw new UnsupportedOperationException(ex);
+            }
+        };
+    }
+
+    /**
+     * Create the executor used by a server
+     *
+     * @param name the prefix of the thread names, if threads are named
+     * @return a new {@link Executor}, shut down with the server when it is an
+     * {@link ExecutorService}
+     */
+    Executor newExecutor(String name);
+}
@@ -1,18 +1,50 @@
 package nn1211.http.server;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.net.ServerSocket;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import nn1211.http.AsyncHandler;
+import nn1211.http.Content;
+import nn1211.http.Content.FileContent;
+import nn1211.http.Content.StreamContent;
+import nn1211.http.FileCache;
+import nn1211.http.FrozenResponse;
+import nn1211.http.Handler;
 import nn1211.http.HandlerManager;
 import nn1211.http.HttpHeader;
 
 import nn1211.http.HttpHeader.Name;
 import nn1211.http.HttpRequest;
+import nn1211.http.HttpRequestParser;
 import nn1211.http.HttpRequest.Method;
 import nn1211.http.HttpResponse;
+import nn1211.http.HttpResponse.StatusCode;
+import nn1211.http.HttpVersion;
+import nn1211.http.MalformedBodyException;
+import nn1211.http.ResourceIndex;
 
 /**
  * A simple HTTP Server
@@ -25,26 +57,60 @@ public class HttpServer {
     private static HttpServer CURRENT = null;
 
     /**
-     * We haven't implemented persistent connection, so we need to send this
-     * back to the client for every response messages
+     * Sent back with the last response of a connection
      */
     private static final HttpHeader CONNECTION_CLOSE_HEADER = HttpHeader
             .from(Name.CONNECTION, "close");
 
+    /**
+     * The interim response asking a client to send the body of its request
+     */
+    static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes();
+
+    /**
+     * Maximum number of body bytes left unread by a handler that are
+     * discarded to keep the connection open
+     */
+    private static final int MAX_DISCARDED_BODY = 256 * 1024;
+
     private final int port;
-    private final ServerSocket listener;
+    private final ServerSocketChannel listener;
 
     private String resourcesPath = ".";
+    private Engine engine = Engine.BLOCKING;
+    private int reactors = Math.max(1,
+            Runtime.getRuntime().availableProcessors() / 2);
+    private int maxRequestsPerConnection = 100;
+    private int idleTimeout = 15000;
+    private int maxPipelinedRequests = 16;
+    private boolean concurrentPipelining;
+    private int maxRequestLineLength
+            = HttpRequestParser.DEFAULT_MAX_REQUEST_LINE_LENGTH;
+    private int maxHeaderSize = HttpRequestParser.DEFAULT_MAX_HEADER_SIZE;
+    private FileCache fileCache = new FileCache();
+    private boolean prewarm;
+    private long preloadBudget;
+    private ResourceIndex resourceIndex;
+    private int compressionMinSize = 1024;
+    private HttpHeader cacheControl;
+    private AccessLog accessLog;
+    private Metrics metrics = new Metrics();
+
+    private ExecutorStrategy executorStrategy;
+
+    private Executor executor;
+    private NioEngine nioEngine;
 
     private HttpServer(int port) throws IOException {
-        listener = new ServerSocket(port);
-        this.port = port;
+        listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress(port));
+        this.port = listener.socket().getLocalPort();
     }
 
     /**
      * Create a new {@link HttpServer} instance with a specified port
      *
-     * @param port
+     * @param port 0 for a port picked by the system, see {@link #port()}
      * @return a new {@link HttpServer} instance
      * @throws IOException
      */
@@ -80,6 +146,15 @@ public class HttpServer {
         return this;
     }
 
+    /**
+     * Get the port this server listens on
+     *
+     * @return the bound port
+     */
+    public final int port() {
+        return port;
+    }
+
     /**
      * Get the resource path
      *
@@ -89,85 +164,1034 @@ public class HttpServer {
         return resourcesPath;
     }
 
+    /**
+     * Set the engine handling the connections of this server
+     *
+     * @param engine
+     * @return this
+     */
+    public HttpServer engine(Engine engine) {
+        this.engine = engine;
+        return this;
+    }
+
+    /**
+     * Set the number of selector threads used by the {@link Engine#NIO}
+     * engine
+     *
+     * @param reactors
+     * @return this
+     * @throws IllegalArgumentException if the number is less than 1
+     */
+    public HttpServer reactors(int reactors) throws IllegalArgumentException {
+        if (reactors < 1) {
+            throw new IllegalArgumentException(
+                    "At least one reactor is required");
+        }
+
+        this.reactors = reactors;
+        return this;
+    }
+
+    /**
+     * Set the maximum number of requests served on a persistent connection
+     * before it is closed
+     *
+     * @param maxRequests
+     * @return this
+     * @throws IllegalArgumentException if the number is less than 1
+     */
+    public HttpServer maxRequestsPerConnection(int maxRequests)
+            throws IllegalArgumentException {
+
+        if (maxRequests < 1) {
+            throw new IllegalArgumentException(
+                    "At least one request per connection is required");
+        }
+
+        maxRequestsPerConnection = maxRequests;
+        return this;
+    }
+
+    /**
+     * Set how long a persistent connection may wait for its next request
+     * before it is closed
+     *
+     * @param millis
+     * @return this
+     * @throws IllegalArgumentException if the timeout is not positive
+     */
+    public HttpServer idleTimeout(int millis) throws IllegalArgumentException {
+        if (millis < 1) {
+            throw new IllegalArgumentException("Idle timeout must be positive");
+        }
+
+        idleTimeout = millis;
+        return this;
+    }
+
+    /**
+     * Set the maximum number of pipelined requests of a connection being
+     * handled at the same time. Reading from the connection pauses once it is
+     * reached.
+     *
+     * @param maxRequests
+     * @return this
+     * @throws IllegalArgumentException if the number is less than 1
+     */
+    public HttpServer maxPipelinedRequests(int maxRequests)
+            throws IllegalArgumentException {
+
+        if (maxRequests < 1) {
+            throw new IllegalArgumentException(
+                    "At least one pipelined request is required");
+        }
+
+        maxPipelinedRequests = maxRequests;
+        return this;
+    }
+
+    /**
+     * Set whether pipelined requests of a connection are handled
+     * concurrently. Their responses are always written in request order.
+     *
+     * @param concurrent
+     * @return this
+     */
+    public HttpServer concurrentPipelining(boolean concurrent) {
+        concurrentPipelining = concurrent;
+        return this;
+    }
+
+    /**
+     * Set the maximum length of a request line. Longer requests are answered
+     * with a 414 response.
+     *
+     * @param maxLength
+     * @return this
+     * @throws IllegalArgumentException if the length is not positive
+     */
+    public HttpServer maxRequestLineLength(int maxLength)
+            throws IllegalArgumentException {
+
+        if (maxLength < 1) {
+            throw new IllegalArgumentException(
+                    "Maximum request line length must be positive");
+        }
+
+        maxRequestLineLength = maxLength;
+        return this;
+    }
+
+    /**
+     * Set the maximum size of the headers of a request. Larger requests are
+     * answered with a 431 response.
+     *
+     * @param maxSize
+     * @return this
+     * @throws IllegalArgumentException if the size is not positive
+     */
+    public HttpServer maxHeaderSize(int maxSize)
+            throws IllegalArgumentException {
+
+        if (maxSize < 1) {
+            throw new IllegalArgumentException(
+                    "Maximum header size must be positive");
+        }
+
+        maxHeaderSize = maxSize;
+        return this;
+    }
+
+    /**
+     * Set the cache of the resource files served by the default handler. The
+     * resource directory is watched for changes while this server runs.
+     *
+     * @param fileCache null to read resource files on every request
+     * @return this
+     */
+    public HttpServer fileCache(FileCache fileCache) {
+        this.fileCache = fileCache;
+        return this;
+    }
+
+    /**
+     * Get the cache of the resource files
+     *
+     * @return null or the cache of the resource files
+     */
+    public final FileCache fileCache() {
+        return fileCache;
+    }
+
+    /**
+     * Set whether the resource directory is indexed when this server starts,
+     * so that the first requests of each file don't pay for resolving it. If
+     * the file cache watches the directory, indexed files are served without
+     * checking them until they change.
+     *
+     * @param prewarm
+     * @return this
+     */
+    public HttpServer prewarm(boolean prewarm) {
+        this.prewarm = prewarm;
+        return this;
+    }
+
+    /**
+     * Set how many bytes of the smallest resource files are loaded into the
+     * file cache when this server starts, if prewarmed
+     *
+     * @param budget 0 to load no files
+     * @return this
+     * @throws IllegalArgumentException if the budget is negative
+     */
+    public HttpServer preloadBudget(long budget)
+            throws IllegalArgumentException {
+
+        if (budget < 0) {
+            throw new IllegalArgumentException(
+                    "The preload budget must not be negative");
+        }
+
+        preloadBudget = budget;
+        return this;
+    }
+
+    /**
+     * Get the index of the resource files built when this server started
+     *
+     * @return null if this server was not prewarmed
+     */
+    public final ResourceIndex resourceIndex() {
+        return resourceIndex;
+    }
+
+    /**
+     * Set the minimum size of the textual resource files compressed by the
+     * default handler for clients accepting gzip or deflate
+     *
+     * @param minSize the minimum size, in bytes, {@link Integer#MAX_VALUE} to
+     * disable compression
+     * @return this
+     * @throws IllegalArgumentException if the size is negative
+     */
+    public HttpServer compressionMinSize(int minSize)
+            throws IllegalArgumentException {
+
+        if (minSize < 0) {
+            throw new IllegalArgumentException(
+                    "Minimum compressed size must not be negative");
+        }
+
+        compressionMinSize = minSize;
+        return this;
+    }
+
+    /**
+     * Get the minimum size of the compressed resource files
+     *
+     * @return the minimum size, in bytes
+     */
+    public final int compressionMinSize() {
+        return compressionMinSize;
+    }
+
+    /**
+     * Set the Cache-Control header sent by the default handler with the
+     * resource files, as {@code public, max-age=3600} to let shared caches
+     * store them
+     *
+     * @param directives null to send no Cache-Control header
+     * @return this
+     * @throws IllegalArgumentException if the directives contain a line break
+     */
+    public HttpServer cacheControl(String directives)
+            throws IllegalArgumentException {
+
+        cacheControl = null == directives ? null
+                : HttpHeader.from(Name.CACHE_CONTROL,
+                        directives.getBytes(StandardCharsets.ISO_8859_1));
+        return this;
+    }
+
+    /**
+     * Get the Cache-Control header sent with the resource files
+     *
+     * @return null or the Cache-Control header
+     */
+    public final HttpHeader cacheControl() {
+        return cacheControl;
+    }
+
+    /**
+     * Set the access log of this server, closed when this server stops
+     *
+     * @param accessLog null to log no requests
+     * @return this
+     */
+    public HttpServer accessLog(AccessLog accessLog) {
+        this.accessLog = accessLog;
+        return this;
+    }
+
+    /**
+     * Get the access log of this server
+     *
+     * @return null or the access log
+     */
+    public final AccessLog accessLog() {
+        return accessLog;
+    }
+
+    /**
+     * Set the metrics of this server
+     *
+     * @param metrics null to record no metrics
+     * @return this
+     */
+    public HttpServer metrics(Metrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    /**
+     * Get the metrics of this server, whose {@link Metrics#handler()} may be
+     * registered to expose them
+     *
+     * @return null or the metrics
+     */
+    public final Metrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * Get the maximum number of pipelined requests of a connection being
+     * handled at the same time
+     *
+     * @return the maximum number of pipelined requests in flight
+     */
+    public final int maxPipelinedRequests() {
+        return maxPipelinedRequests;
+    }
+
+    /**
+     * Determine if pipelined requests are handled concurrently
+     *
+     * @return {@code true} if pipelined requests are handled concurrently
+     */
+    public final boolean concurrentPipelining() {
+        return concurrentPipelining;
+    }
+
+    /**
+     * Get the maximum number of requests served on a persistent connection
+     *
+     * @return the maximum number of requests served on a connection
+     */
+    public final int maxRequestsPerConnection() {
+        return maxRequestsPerConnection;
+    }
+
+    /**
+     * Get how long, in milliseconds, an idle persistent connection is kept
+     *
+     * @return the idle timeout of persistent connections
+     */
+    public final int idleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Set the strategy deciding which threads handle the connections (for the
+     * {@link Engine#BLOCKING} engine) or the requests (for the
+     * {@link Engine#NIO} engine) of this server. Defaults to
+     * {@link ExecutorStrategy#threadPerConnection()} for the blocking engine
+     * and a pool of two threads per processor for the NIO engine.
+     *
+     * @param executorStrategy
+     * @return this
+     */
+    public HttpServer executor(ExecutorStrategy executorStrategy) {
+        this.executorStrategy = executorStrategy;
+        return this;
+    }
+
     /**
      * Start this server
+     *
+     * @throws IOException
      */
-    public final void start() {
-        new Thread(() -> {
-            while (true) {
-                listen();
+    public final void start() throws IOException {
+        ExecutorStrategy strategy = executorStrategy;
+        if (null == strategy) {
+            strategy = Engine.NIO == engine
+                    ? ExecutorStrategy.boundedPool(
+                            Runtime.getRuntime().availableProcessors() * 2)
+                    : ExecutorStrategy.threadPerConnection();
+        }
+        executor = strategy.newExecutor("HttpServer-worker");
+
+        if (null != fileCache) {
+            try {
+                fileCache.watch(Paths.get(resourcesPath));
+            } catch (IOException ex) {
+                // Cached files are checked for modification instead
+                ex.printStackTrace(System.err);
             }
-        }).start();
+        }
+
+        if (prewarm) {
+            prewarm();
+        }
+
+        if (Engine.NIO == engine) {
+            nioEngine = new NioEngine(this, listener, reactors, executor);
+            nioEngine.start();
+        } else {
+            new Thread(() -> {
+                while (listener.isOpen()) {
+                    listen();
+                }
+            }).start();
+        }
 
         System.out.println("HttpServer - Start listen on port " + port
-                + " and resource path '"
+                + " with " + engine + " engine and resource path '"
                 + new File(resourcesPath).getAbsolutePath() + "'");
 
         Runtime.getRuntime().addShutdownHook(new Thread(() -> stop()));
     }
 
+    /**
+     * Index the resource directory, then preload the smallest files within
+     * the budget
+     */
+    private void prewarm() {
+        long start = System.nanoTime();
+        resourceIndex = ResourceIndex.build(new File(resourcesPath), fileCache);
+        long indexed = System.nanoTime();
+
+        int preloaded = 0;
+        if (null != fileCache && 0 < preloadBudget) {
+            preloaded = resourceIndex.preload(fileCache, resourcesPath,
+                    preloadBudget);
+        }
+        long done = System.nanoTime();
+
+        System.out.println("HttpServer - Indexed " + resourceIndex.size()
+                + " resources (" + resourceIndex.totalLength() + " bytes) in "
+                + (indexed - start) / 1_000_000 + " ms, preloaded "
+                + preloaded + " in " + (done - indexed) / 1_000_000 + " ms");
+    }
+
     /**
      * Stop this server
      */
     public final void stop() {
         try {
             listener.close();
+            if (null != nioEngine) {
+                nioEngine.stop();
+            }
+            if (executor instanceof ExecutorService) {
+                ((ExecutorService) executor).shutdownNow();
+            }
+            if (null != accessLog) {
+                accessLog.close();
+            }
+            if (null != fileCache) {
+                fileCache.unwatch();
+            }
             System.out.println("HttpServer - Stopped");
         } catch (IOException ex) {
             ex.printStackTrace(System.err);
         }
     }
 
-    private void listen() {
+    /**
+     * Handle a parsed request
+     *
+     * @param req
+     * @return the response for the request
+     * @throws IOException
+     */
+    HttpResponse process(HttpRequest req) throws IOException {
+        if (Method.UNSUPPORTED == req.method()) {
+            return FrozenResponse.error(StatusCode.METHOD_NOT_ALLOWED);
+        }
+
+        return HandlerManager.INSTANCE.get(req).handle(req);
+    }
+
+    /**
+     * Handle a parsed request without waiting for an {@link AsyncHandler}
+     *
+     * @param req
+     * @return the future response for the request, completed by the thread
+     * completing the response of an {@link AsyncHandler}
+     */
+    CompletableFuture<HttpResponse> processAsync(HttpRequest req) {
+        if (Method.UNSUPPORTED == req.method()) {
+            return CompletableFuture.completedFuture(
+                    FrozenResponse.error(StatusCode.METHOD_NOT_ALLOWED));
+        }
+
+        Handler handler = HandlerManager.INSTANCE.get(req);
         try {
-            final Socket connection = listener.accept();
-            new Thread(() -> handle(connection)).start();
-        } catch (IOException ex) {
-            ex.printStackTrace(System.err);
+            if (!(handler instanceof AsyncHandler)) {
+                return CompletableFuture.completedFuture(handler.handle(req));
+            }
+
+            CompletionStage<HttpResponse> stage = ((AsyncHandler) handler)
+                    .handleAsync(req);
+            if (null == stage) {
+                return CompletableFuture.failedFuture(
+                        new IOException("No response for " + req.uri()));
+            }
+
+            return stage.toCompletableFuture();
+        } catch (IOException | RuntimeException ex) {
+            return CompletableFuture.failedFuture(ex);
         }
     }
 
-    private void handle(Socket connection) {
+    /**
+     * Create a parser for the requests of a new connection
+     *
+     * @return a new {@link HttpRequestParser}
+     */
+    HttpRequestParser newParser() {
+        return new HttpRequestParser(maxRequestLineLength, maxHeaderSize);
+    }
+
+    /**
+     * Record a response in the access log and the metrics, if any
+     *
+     * @param remote the address of the client
+     * @param req null for an invalid request
+     * @param resp
+     * @param start when the request head was read, see
+     * {@link System#nanoTime()}
+     */
+    void record(SocketAddress remote, HttpRequest req, HttpResponse resp,
+            long start) {
+
+        Metrics m = metrics;
+        if (null != m) {
+            m.record(req, resp, (System.nanoTime() - start) / 1000);
+        }
+
+        AccessLog log = accessLog;
+        if (null == log) {
+            return;
+        }
+
+        Content body = resp.body();
+        long bytes = null == body
+                || null != req && Method.HEAD == req.method() ? 0
+                : body.length();
+        log.log(remote, null == req ? null : req.method(),
+                null == req ? null : req.uri(), resp.statusCode().code(),
+                bytes, start);
+    }
+
+    /**
+     * Handle a pipelined request, on the executor of this server if pipelined
+     * requests are handled concurrently
+     *
+     * @param req
+     * @param close whether the connection is closed after the response
+     * @param remote the address of the client
+     * @param start when the request head was read
+     * @return the future response for the request
+     */
+    private CompletableFuture<OutboundResponse> dispatch(HttpRequest req,
+            boolean close, SocketAddress remote, long start) {
+
+        if (!concurrentPipelining) {
+            return respond(req, close, remote, start);
+        }
+
+        return CompletableFuture.supplyAsync(
+                () -> respond(req, close, remote, start), executor)
+                .thenCompose(response -> response);
+    }
+
+    /**
+     * Handle a request and serialize its response once complete
+     *
+     * @param req
+     * @param close whether the connection is closed after the response
+     * @param remote the address of the client
+     * @param start when the request head was read
+     * @return the future serialized response
+     */
+    private CompletableFuture<OutboundResponse> respond(HttpRequest req,
+            boolean close, SocketAddress remote, long start) {
+
+        return processAsync(req).handle((resp, failure) -> {
+            if (null == failure) {
+                try {
+                    OutboundResponse out = serialize(resp, req, close);
+                    record(remote, req, resp, start);
+                    return out;
+                } catch (IOException | RuntimeException ex) {
+                    failure = ex;
+                }
+            }
+
+            return fail(req, failure, close, remote, start);
+        });
+    }
+
+    /**
+     * Answer a request whose handler failed, or whose response couldn't be
+     * serialized, with a 500 response, or with the status of a
+     * {@link MalformedBodyException} causing the failure. The connection of
+     * a malformed body is closed, its body not being discarded.
+     *
+     * @param req
+     * @param failure
+     * @param close whether the connection is closed after the response
+     * @param remote the address of the client
+     * @param start when the request head was read
+     * @return the serialized error response
+     */
+    OutboundResponse fail(HttpRequest req, Throwable failure, boolean close,
+            SocketAddress remote, long start) {
+
+        StatusCode statusCode = StatusCode.INTERNAL_SERVER_ERROR;
+        for (Throwable cause = failure; null != cause;
+                cause = cause.getCause()) {
+            if (cause instanceof MalformedBodyException) {
+                statusCode = ((MalformedBodyException) cause).statusCode();
+                break;
+            }
+        }
+
+        if (StatusCode.INTERNAL_SERVER_ERROR == statusCode) {
+            if (failure instanceof CompletionException
+                    && null != failure.getCause()) {
+                failure = failure.getCause();
+            }
+            failure.printStackTrace(System.err);
+        }
+
+        HttpResponse resp = FrozenResponse.error(statusCode);
+        record(remote, req, resp, start);
         try {
-            HttpRequest req = HttpRequest.parse(connection.getInputStream());
+            return serialize(resp, req, close);
+        } catch (IOException ex) { // Not for a frozen response
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Determine if a request asks the client to wait for a 100 (Continue)
+     * response before sending its body
+     *
+     * @param req
+     * @return {@code true} if the request expects a 100 (Continue) response
+     */
+    static boolean expectsContinue(HttpRequest req) {
+        HttpHeader expect = req.headers().get(Name.EXPECT);
+        return null != expect && req.hasBody()
+                && "100-continue".equalsIgnoreCase(expect.value());
+    }
+
+    /**
+     * Read what a handler left of a request body, so that the next request
+     * of the connection can be read
+     *
+     * @param req
+     * @param continuation the body source if the request expects a 100
+     * (Continue) response, null otherwise
+     * @return {@code false} if the connection has to be closed instead
+     */
+    static boolean discardBody(HttpRequest req,
+            ContinueInputStream continuation) {
+
+        if (!req.hasBody()) {
+            return true;
+        }
+
+        if (null != continuation && !continuation.started()) {
+            return false; // The client may or may not send the body
+        }
+
+        try {
+            InputStream body = req.bodyStream();
+            byte[] scratch = new byte[8192];
+            long discarded = 0;
+            int n;
+            while (-1 != (n = body.read(scratch))) {
+                if ((discarded += n) > MAX_DISCARDED_BODY) {
+                    return false;
+                }
+            }
+
+            return true;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Determine if the connection of a request may serve further requests:
+     * only for HTTP/1.1 requests not asking to close it
+     *
+     * @param req
+     * @return {@code true} if the connection can be kept open
+     */
+    boolean isPersistent(HttpRequest req) {
+        if (HttpVersion.V1_1 != req.httpVersion()) {
+            return false;
+        }
+
+        HttpHeader connection = req.headers().get(Name.CONNECTION);
+        if (null == connection) {
+            return true;
+        }
 
-            HttpResponse resp;
-            if (null == req.method() || null == req.uri()) {
-                return;
+        for (String token : connection.value().split(",")) {
+            if ("close".equalsIgnoreCase(token.trim())) {
+                return false;
             }
+        }
+
+        return true;
+    }
+
+    /**
+     * Convert the response of a request to what is sent back to the client,
+     * see {@link #serialize(HttpResponse, boolean, boolean)}. A
+     * {@link StreamContent} body answering a request other than HTTP/1.1 is
+     * sent without the chunked transfer coding, which such clients may not
+     * understand, and delimited by closing the connection.
+     *
+     * @param resp
+     * @param req the request answered
+     * @param close whether the connection is closed after this response,
+     * always the case for requests other than HTTP/1.1
+     * @return the serialized response
+     * @throws IOException if the file of the body can't be opened
+     */
+    OutboundResponse serialize(HttpResponse resp, HttpRequest req,
+            boolean close) throws IOException {
+
+        return serialize(resp, Method.HEAD == req.method(), close,
+                HttpVersion.V1_1 == req.httpVersion());
+    }
+
+    /**
+     * Convert a response to what is sent back to the client. A
+     * {@link FrozenResponse} is sent as serialized, the file of a
+     * {@link FileContent} body is opened to be transferred after the head, a
+     * {@link StreamContent} body is produced while it is sent.
+     *
+     * @param resp
+     * @param head whether the response answers a HEAD request, and is sent
+     * without its body
+     * @param close whether the connection is closed after this response
+     * @return the serialized response
+     * @throws IOException if the file of the body can't be opened
+     */
+    OutboundResponse serialize(HttpResponse resp, boolean head, boolean close)
+            throws IOException {
+
+        return serialize(resp, head, close, true);
+    }
+
+    private OutboundResponse serialize(HttpResponse resp, boolean head,
+            boolean close, boolean chunked) throws IOException {
+
+        Metrics m = metrics;
+        FrozenResponse frozen = resp.asFrozenResponse();
+        if (null != frozen) { // Already serialized
+            ByteBuffer[] buffers = frozen.toBuffers(!head, close);
+            if (null != m) {
+                m.wrote(OutboundResponse.remaining(buffers));
+            }
+            return new OutboundResponse(buffers);
+        }
+
+        if (close) {
+            resp.headers().put(CONNECTION_CLOSE_HEADER);
+        }
+
+        Content body = head ? null : resp.body();
+        FileContent file = null == body ? null : body.asFileContent();
+        if (null != file) {
+            ByteBuffer[] buffers = resp.toBuffers(false);
+            OutboundResponse out = new OutboundResponse(buffers,
+                    FileChannel.open(file.path()), file);
+            if (null != m) {
+                m.wrote(OutboundResponse.remaining(buffers) + file.length());
+            }
+            return out;
+        }
 
-            System.out.println(req);
-            if (Method.UNSUPPORTED == req.method()) {
-                resp = HttpResponse.methodNotAllowed();
-            } else {
-                resp = HandlerManager.INSTANCE.get(req).handle(req);
+        StreamContent stream = null == body ? null : body.asStreamContent();
+        if (null != stream) {
+            if (!chunked) { // Delimited by closing the connection
+                resp.headers().remove(Name.TRANSFER_ENCODING);
             }
+            ByteBuffer[] buffers = resp.toBuffers(false);
+            if (null != m) {
+                m.wrote(OutboundResponse.remaining(buffers));
+            }
+            return new OutboundResponse(buffers, stream, chunked, m);
+        }
 
-            writeResponse(connection.getOutputStream(), resp);
+        ByteBuffer[] buffers = resp.toBuffers(!head);
+        if (null != m) {
+            m.wrote(OutboundResponse.remaining(buffers));
+        }
+        return new OutboundResponse(buffers);
+    }
+
+    /**
+     * Close a resource, reporting but otherwise ignoring failures
+     *
+     * @param closeable
+     */
+    static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ex) {
+            ex.printStackTrace(System.err);
+        }
+    }
+
+    private void listen() {
+        try {
+            final Socket connection = listener.accept().socket();
+            executor.execute(() -> handle(connection));
+        } catch (IOException ex) {
+            if (listener.isOpen()) {
+                ex.printStackTrace(System.err);
+            }
+        }
+    }
+
+    private void handle(Socket connection) {
+        Metrics m = metrics;
+        if (null != m) {
+            m.connectionOpened();
+        }
+
+        try (connection) {
+            connection.setSoTimeout(idleTimeout);
+
+            InputStream inStream = connection.getInputStream();
+            GatheringByteChannel channel = connection.getChannel();
+            SocketAddress remote = connection.getRemoteSocketAddress();
+            HttpRequestParser parser = newParser();
+            InputStream bodySource = parser.asInputStream(inStream);
+
+            // Requests read but not answered yet, in arrival order
+            Deque<CompletableFuture<OutboundResponse>> pending
+                    = new ArrayDeque<>();
+            for (int count = 1;; count++) {
+                HttpRequest req;
+                try {
+                    req = readRequest(parser, inStream);
+                } catch (SocketTimeoutException ex) {
+                    writeResponses(channel, pending);
+                    return; // Idle for too long
+                } catch (IOException ex) {
+                    discard(pending);
+                    throw ex;
+                }
+
+                long start = System.nanoTime();
+                if (null == req) {
+                    StatusCode error = parser.error();
+                    if (null != error) {
+                        HttpResponse resp = FrozenResponse.error(error);
+                        record(remote, null, resp, start);
+                        pending.add(CompletableFuture.completedFuture(
+                                serialize(resp, false, true)));
+                    }
+
+                    writeResponses(channel, pending);
+                    return;
+                }
+
+                boolean close = count >= maxRequestsPerConnection
+                        || !isPersistent(req);
+
+                if (req.hasBody()) {
+                    // The body has to be read before the next request
+                    writeResponses(channel, pending);
+                    if (!respondWithBody(req, close, bodySource, parser,
+                            channel, remote, start)) {
+                        return;
+                    }
+                    continue;
+                }
+
+                pending.add(dispatch(req, close, remote, start));
+
+                // Read further pipelined requests before answering
+                if (!close && pending.size() < maxPipelinedRequests
+                        && (parser.hasRemaining()
+                                || inStream.available() > 0)) {
+                    continue;
+                }
+
+                writeResponses(channel, pending);
+                if (close) {
+                    return;
+                }
+            }
         } catch (IOException ex) {
             ex.printStackTrace(System.err);
         } finally {
-            // TODO: need to implement persistence connection instead
+            if (null != m) {
+                m.connectionClosed();
+            }
+        }
+    }
+
+    /**
+     * Handle a request having a body and write its response
+     *
+     * @param req
+     * @param close whether the connection has to be closed after the response
+     * @param bodySource
+     * @param parser
+     * @param channel
+     * @param remote the address of the client
+     * @param start when the request head was read
+     * @return {@code false} if the connection is closed after the response
+     * @throws IOException
+     */
+    private boolean respondWithBody(HttpRequest req, boolean close,
+            InputStream bodySource, HttpRequestParser parser,
+            GatheringByteChannel channel, SocketAddress remote, long start)
+            throws IOException {
+
+        ContinueInputStream continuation = null;
+        if (expectsContinue(req)) {
+            continuation = new ContinueInputStream(bodySource,
+                    () -> OutboundResponse.writeFully(channel,
+                            new ByteBuffer[] {ByteBuffer.wrap(CONTINUE)}));
+            parser.attachBody(req, continuation);
+        } else {
+            parser.attachBody(req, bodySource);
+        }
+
+        HttpResponse resp = null;
+        Throwable failure = null;
+        try {
+            resp = process(req);
+        } catch (IOException | RuntimeException ex) {
+            failure = ex;
+        }
+        close = !discardBody(req, continuation) || close;
+
+        OutboundResponse out = null;
+        if (null == failure) {
             try {
-                connection.close();
-            } catch (IOException iex) {
-                iex.printStackTrace(System.err);
+                out = serialize(resp, req, close);
+                record(remote, req, resp, start);
+            } catch (IOException | RuntimeException ex) {
+                failure = ex;
             }
         }
+        if (null != failure) {
+            out = fail(req, failure, close, remote, start);
+        }
+
+        OutboundResponse.writeFully(channel, out.buffers());
+        out.transferFully(channel);
+
+        return !close;
     }
 
-    private void writeResponse(OutputStream outStream, HttpResponse resp)
+    /**
+     * Read the next request of a connection
+     *
+     * @param parser
+     * @param inStream
+     * @return null at the end of the stream or for an invalid request (see
+     * {@link HttpRequestParser#error()}), a {@link HttpRequest} otherwise
+     * @throws IOException
+     */
+    private static HttpRequest readRequest(HttpRequestParser parser,
+            InputStream inStream) throws IOException {
+
+        HttpRequest req;
+        while (null == (req = parser.next()) && null == parser.error()) {
+            if (-1 == parser.fill(inStream)) {
+                return null;
+            }
+        }
+
+        return req;
+    }
+
+    /**
+     * Write the pending responses in request order, gathering their buffers
+     * up to the next file to transfer
+     *
+     * @param channel
+     * @param pending
+     * @throws IOException
+     */
+    private static void writeResponses(GatheringByteChannel channel,
+            Deque<CompletableFuture<OutboundResponse>> pending)
             throws IOException {
 
-        try (outStream) {
-            // We haven't implemented persistent connection,
-            // so we need to send Connection: close header to client
-            resp.headers().put(CONNECTION_CLOSE_HEADER);
+        List<ByteBuffer> batch = new ArrayList<>();
+        CompletableFuture<OutboundResponse> next;
+        while (null != (next = pending.poll())) {
+            OutboundResponse out;
+            try {
+                out = next.join();
+            } catch (CompletionException ex) {
+                discard(pending);
+                Throwable cause = ex.getCause();
+                if (cause instanceof UncheckedIOException) {
+                    cause = cause.getCause();
+                }
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                throw ex;
+            }
+
+            Collections.addAll(batch, out.buffers());
+            if (out.hasTransfer()) {
+                try {
+                    OutboundResponse.writeFully(channel,
+                            batch.toArray(new ByteBuffer[0]));
+                    out.transferFully(channel);
+                } catch (IOException ex) {
+                    out.close();
+                    discard(pending);
+                    throw ex;
+                }
+                batch.clear();
+            }
+        }
+
+        OutboundResponse.writeFully(channel, batch.toArray(new ByteBuffer[0]));
+    }
 
-            outStream.write(resp.toBytes());
-            outStream.flush();
+    /**
+     * Release the responses that won't be written
+     *
+     * @param pending
+     */
+    private static void discard(
+            Deque<CompletableFuture<OutboundResponse>> pending) {
 
-            System.out.println(resp.statusCode() + "\n\n");
+        CompletableFuture<OutboundResponse> next;
+        while (null != (next = pending.poll())) {
+            next.thenAccept(OutboundResponse::close);
         }
     }
 }
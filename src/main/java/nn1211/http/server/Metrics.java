@@ -0,0 +1,385 @@
+package nn1211.http.server;
+
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import nn1211.http.Content;
+import nn1211.http.Handler;
+import nn1211.http.HttpRequest;
+import nn1211.http.HttpResponse;
+
+/**
+ * The metrics of a {@link HttpServer}: connection and byte counters, and the
+ * latency histograms of the responses per route and status class. Updates
+ * only increment striped {@link LongAdder}s, so they don't contend. The
+ * metrics are exposed in the Prometheus text format by {@link #handler()}.
+ *
+ * @author nn1211
+ *
+ */
+public final class Metrics {
+
+    /**
+     * The route of the requests matching no registered route, such as the
+     * resource files
+     */
+    public static final String DEFAULT_ROUTE = "default";
+
+    /**
+     * The route of the requests that couldn't be parsed
+     */
+    public static final String INVALID_ROUTE = "invalid";
+
+    private static final String[] STATUS_CLASSES = {"1xx", "2xx", "3xx",
+        "4xx", "5xx"};
+
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder active = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+
+    /**
+     * Histograms of each route, indexed by status class
+     */
+    private final Map<String, Histogram[]> latencies
+            = new ConcurrentHashMap<>();
+
+    /**
+     * A latency histogram with fixed log-linear buckets: each power of two
+     * from {@code 2^MIN_EXPONENT} to {@code 2^MAX_EXPONENT} microseconds is
+     * split in {@code 2^SUB_BITS} linear buckets, so that the relative error
+     * of a bucket bound is at most 12.5%, from 16us to about a minute
+     *
+     * @author nn1211
+     *
+     */
+    public static final class Histogram {
+
+        private static final int MIN_EXPONENT = 4;
+        private static final int MAX_EXPONENT = 25;
+        private static final int SUB_BITS = 3;
+
+        /**
+         * Number of buckets, including the ones below and above the range
+         */
+        static final int BUCKETS = 2
+                + ((MAX_EXPONENT - MIN_EXPONENT + 1) << SUB_BITS);
+
+        /**
+         * Exclusive upper bound of each bucket, in microseconds
+         */
+        private static final long[] BOUNDS = new long[BUCKETS];
+
+        /**
+         * The bounds in seconds, as Prometheus {@code le} labels
+         */
+        private static final String[] LABELS = new String[BUCKETS];
+
+        static {
+            BOUNDS[0] = 1L << MIN_EXPONENT;
+            for (int i = 1; i < BUCKETS - 1; i++) {
+                int exponent = MIN_EXPONENT + ((i - 1) >> SUB_BITS);
+                int sub = (i - 1) & ((1 << SUB_BITS) - 1);
+                BOUNDS[i] = (1L << exponent)
+                        + ((sub + 1L) << (exponent - SUB_BITS));
+            }
+            BOUNDS[BUCKETS - 1] = Long.MAX_VALUE;
+
+            for (int i = 0; i < BUCKETS - 1; i++) {
+                LABELS[i] = BigDecimal.valueOf(BOUNDS[i], 6)
+                        .stripTrailingZeros().toPlainString();
+            }
+            LABELS[BUCKETS - 1] = "+Inf";
+        }
+
+        private final LongAdder[] counts = new LongAdder[BUCKETS];
+        private final LongAdder sum = new LongAdder();
+
+        Histogram() {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = new LongAdder();
+            }
+        }
+
+        /**
+         * Get the bucket of a value
+         *
+         * @param micros
+         * @return the index of the bucket
+         */
+        static int bucket(long micros) {
+            if (micros < BOUNDS[0]) {
+                return 0;
+            }
+
+            int exponent = 63 - Long.numberOfLeadingZeros(micros);
+            if (exponent > MAX_EXPONENT) {
+                return BUCKETS - 1;
+            }
+
+            int sub = (int) (micros >>> (exponent - SUB_BITS))
+                    & ((1 << SUB_BITS) - 1);
+            return 1 + ((exponent - MIN_EXPONENT) << SUB_BITS) + sub;
+        }
+
+        /**
+         * Record a latency
+         *
+         * @param micros
+         */
+        void record(long micros) {
+            counts[bucket(micros)].increment();
+            sum.add(micros);
+        }
+
+        /**
+         * Get the number of recorded latencies
+         *
+         * @return the number of responses
+         */
+        public long count() {
+            long count = 0;
+            for (LongAdder bucket : counts) {
+                count += bucket.sum();
+            }
+
+            return count;
+        }
+
+        /**
+         * Get the sum of the recorded latencies
+         *
+         * @return the total latency, in microseconds
+         */
+        public long sum() {
+            return sum.sum();
+        }
+
+        /**
+         * Estimate a percentile of the recorded latencies, as the upper bound
+         * of its bucket
+         *
+         * @param percentile between 0 and 100
+         * @return the latency, in microseconds, {@link Long#MAX_VALUE} if above
+         * the range of this histogram, 0 if empty
+         */
+        public long percentile(double percentile) {
+            long[] snapshot = new long[BUCKETS];
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                count += snapshot[i] = counts[i].sum();
+            }
+
+            long rank = (long) Math.ceil(percentile / 100 * count);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (0 < snapshot[i] && seen >= rank) {
+                    return BOUNDS[i];
+                }
+            }
+
+            return 0;
+        }
+
+        private void write(StringBuilder out, String labels) {
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                cumulative += counts[i].sum();
+                out.append("http_request_duration_seconds_bucket{")
+                        .append(labels).append(",le=\"").append(LABELS[i])
+                        .append("\"} ").append(cumulative).append('\n');
+            }
+            out.append("http_request_duration_seconds_sum{").append(labels)
+                    .append("} ").append(BigDecimal.valueOf(sum(), 6)
+                            .toPlainString())
+                    .append('\n');
+            out.append("http_request_duration_seconds_count{").append(labels)
+                    .append("} ").append(cumulative).append('\n');
+        }
+    }
+
+    /**
+     * Count an accepted connection
+     */
+    void connectionOpened() {
+        accepted.increment();
+        active.increment();
+    }
+
+    /**
+     * Count a closed connection
+     */
+    void connectionClosed() {
+        active.decrement();
+    }
+
+    /**
+     * Count the bytes of a response
+     *
+     * @param count
+     */
+    void wrote(long count) {
+        bytes.add(count);
+    }
+
+    /**
+     * Record the latency of a response
+     *
+     * @param req null for an invalid request
+     * @param resp
+     * @param micros the latency, in microseconds
+     */
+    void record(HttpRequest req, HttpResponse resp, long micros) {
+        String route = null == req ? INVALID_ROUTE : req.route();
+        Histogram[] histograms = latencies.get(null == route ? DEFAULT_ROUTE
+                : route);
+        if (null == histograms) {
+            histograms = latencies.computeIfAbsent(
+                    null == route ? DEFAULT_ROUTE : route, key -> {
+                        Histogram[] created
+                                = new Histogram[STATUS_CLASSES.length];
+                        for (int i = 0; i < created.length; i++) {
+                            created[i] = new Histogram();
+                        }
+                        return created;
+                    });
+        }
+
+        int statusClass = resp.statusCode().code() / 100 - 1;
+        histograms[Math.max(0, Math.min(statusClass, histograms.length - 1))]
+                .record(micros);
+    }
+
+    /**
+     * Get the number of accepted connections
+     *
+     * @return the number of connections since the server started
+     */
+    public long accepted() {
+        return accepted.sum();
+    }
+
+    /**
+     * Get the number of open connections
+     *
+     * @return the number of connections not closed yet
+     */
+    public long active() {
+        return active.sum();
+    }
+
+    /**
+     * Get the number of bytes of the responses
+     *
+     * @return the total size of the responses, heads included
+     */
+    public long bytesWritten() {
+        return bytes.sum();
+    }
+
+    /**
+     * Get the latency histogram of a route and status class
+     *
+     * @param route a route pattern, {@link #DEFAULT_ROUTE} or
+     * {@link #INVALID_ROUTE}
+     * @param status a status code of the class
+     * @return null if no response was recorded for the route
+     */
+    public Histogram latency(String route, int status) {
+        Histogram[] histograms = latencies.get(route);
+        int statusClass = status / 100 - 1;
+        return null == histograms || statusClass < 0
+                || statusClass >= histograms.length ? null
+                : histograms[statusClass];
+    }
+
+    /**
+     * Create a handler answering the metrics in the Prometheus text format,
+     * to be registered on a route such as {@code /metrics}
+     *
+     * @return a new handler
+     */
+    public Handler handler() {
+        return req -> HttpResponse.ok(Content.text(toPrometheus()));
+    }
+
+    /**
+     * Format the metrics in the Prometheus text format
+     *
+     * @return the metrics
+     */
+    public String toPrometheus() {
+        StringBuilder out = new StringBuilder(4096);
+        counter(out, "http_connections_accepted_total",
+                "Connections accepted", accepted());
+        gauge(out, "http_connections_active", "Connections open", active());
+        counter(out, "http_response_bytes_total",
+                "Bytes of the responses, heads included", bytesWritten());
+
+        out.append("# HELP http_request_duration_seconds Time from the"
+                + " request head to the response\n"
+                + "# TYPE http_request_duration_seconds histogram\n");
+        for (Map.Entry<String, Histogram[]> entry : new TreeMap<>(latencies)
+                .entrySet()) {
+            Histogram[] histograms = entry.getValue();
+            for (int i = 0; i < histograms.length; i++) {
+                if (0 < histograms[i].count()) {
+                    histograms[i].write(out, "route=\""
+                            + escape(entry.getKey()) + "\",status=\""
+                            + STATUS_CLASSES[i] + '"');
+                }
+            }
+        }
+
+        return out.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "Metrics[accepted=" + accepted() + ", active=" + active()
+                + ", bytes=" + bytesWritten() + ", routes="
+                + latencies.size() + "]";
+    }
+
+    /**
+     * Write a monotonic counter
+     *
+     * @param out
+     * @param name
+     * @param help
+     * @param value
+     */
+    private static void counter(StringBuilder out, String name, String help,
+            long value) {
+        metric(out, name, "counter", help, value);
+    }
+
+    /**
+     * Write a gauge, a value which may go down
+     *
+     * @param out
+     * @param name
+     * @param help
+     * @param value
+     */
+    private static void gauge(StringBuilder out, String name, String help,
+            long value) {
+        metric(out, name, "gauge", help, value);
+    }
+
+    private static void metric(StringBuilder out, String name, String type,
+            String help, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help)
+                .append("\n# TYPE ").append(name).append(' ').append(type)
+                .append('\n').append(name).append(' ').append(value)
+                .append('\n');
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"")
+                .replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,840 @@
+package nn1211.http.server;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+import nn1211.http.FrozenResponse;
+import nn1211.http.HttpRequest;
+import nn1211.http.HttpRequestParser;
+import nn1211.http.HttpResponse;
+import nn1211.http.HttpResponse.StatusCode;
+
+/**
+ * A non-blocking {@link Engine#NIO} engine. One acceptor thread hands new
+ * connections to a few reactor threads which multiplex them on their
+ * {@link Selector}. Requests are parsed incrementally on the reactor threads
+ * and handed to worker threads once complete. The parser buffer of a
+ * connection is released when no bytes are pending, so an idle connection only
+ * costs a selection key and a small {@link Connection} object.
+ * Pipelined requests are answered in request order, each batch of completed
+ * responses being sent with a single gathering write, and file bodies being
+ * transferred with {@link java.nio.channels.FileChannel#transferTo}. Streamed
+ * bodies are produced on the worker threads through a {@link ChunkPipe}. The
+ * body of a request is streamed to its handler through a {@link BodyPipe}, no
+ * further request being parsed until the handler is done.
+ *
+ * @author nn1211
+ *
+ */
+final class NioEngine {
+
+    /**
+     * Size of the read buffer shared by all connections of a reactor
+     */
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * Interval between two checks for idle connections
+     */
+    private static final long SWEEP_INTERVAL = 1000;
+
+    /**
+     * Number of body bytes buffered ahead of a handler before the connection
+     * stops being read, and of streamed response bytes produced ahead of the
+     * connection before their producer waits
+     */
+    private static final int BODY_BUFFER_SIZE = 64 * 1024;
+
+    private final HttpServer server;
+    private final ServerSocketChannel listener;
+    private final Reactor[] reactors;
+    private final Executor workers;
+
+    private volatile boolean running;
+
+    /**
+     * Create a new engine serving the connections accepted by a listener
+     *
+     * @param server
+     * @param listener
+     * @param reactorCount
+     * @param workers the executor running the handlers
+     * @throws IOException
+     */
+    NioEngine(HttpServer server, ServerSocketChannel listener,
+            int reactorCount, Executor workers) throws IOException {
+
+        this.server = server;
+        this.listener = listener;
+
+        reactors = new Reactor[reactorCount];
+        for (int i = 0; i < reactorCount; i++) {
+            reactors[i] = new Reactor();
+        }
+
+        this.workers = workers;
+    }
+
+    /**
+     * Start the acceptor and reactor threads
+     */
+    void start() {
+        running = true;
+
+        for (int i = 0; i < reactors.length; i++) {
+            new Thread(reactors[i], "HttpServer-reactor-" + i).start();
+        }
+
+        new Thread(this::accept, "HttpServer-acceptor").start();
+    }
+
+    /**
+     * Stop all threads of this engine
+     */
+    void stop() {
+        running = false;
+
+        for (Reactor reactor : reactors) {
+            reactor.selector.wakeup();
+        }
+    }
+
+    private void accept() {
+        int next = 0;
+        while (running && listener.isOpen()) {
+            try {
+                SocketChannel channel = listener.accept();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+                reactors[next++ % reactors.length].register(channel);
+            } catch (IOException ex) {
+                if (running && listener.isOpen()) {
+                    ex.printStackTrace(System.err);
+                }
+            }
+        }
+    }
+
+    /**
+     * A selector thread serving a subset of the connections
+     *
+     * @author nn1211
+     *
+     */
+    private final class Reactor implements Runnable {
+
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer
+                .allocateDirect(READ_BUFFER_SIZE);
+
+        Reactor() throws IOException {
+            selector = Selector.open();
+        }
+
+        /**
+         * Run a task on this reactor thread
+         *
+         * @param task
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        /**
+         * Start serving a new connection on this reactor
+         *
+         * @param channel
+         */
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    Connection connection = new Connection(this, channel);
+                    connection.key = channel.register(selector,
+                            SelectionKey.OP_READ, connection);
+                } catch (IOException ex) {
+                    ex.printStackTrace(System.err);
+                    HttpServer.closeQuietly(channel);
+                }
+            });
+        }
+
+        @Override
+        public void run() {
+            long lastSweep = System.currentTimeMillis();
+            while (running) {
+                try {
+                    selector.select(SWEEP_INTERVAL);
+                } catch (IOException ex) {
+                    ex.printStackTrace(System.err);
+                    break;
+                }
+
+                Runnable task;
+                while (null != (task = tasks.poll())) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys()
+                        .iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            connection.read();
+                        } else if (key.isWritable()) {
+                            connection.flush();
+                        }
+                    } catch (IOException | CancelledKeyException ex) {
+                        connection.close();
+                    }
+                }
+
+                long now = System.currentTimeMillis();
+                if (now - lastSweep >= SWEEP_INTERVAL) {
+                    lastSweep = now;
+                    closeIdleConnections(now - server.idleTimeout());
+                }
+            }
+
+            for (SelectionKey key : selector.keys()) {
+                HttpServer.closeQuietly(key.channel());
+            }
+            HttpServer.closeQuietly(selector);
+        }
+
+        /**
+         * Close the connections waiting for a request since a given time
+         *
+         * @param deadline
+         */
+        private void closeIdleConnections(long deadline) {
+            for (SelectionKey key : selector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                if (null != connection && !connection.busy
+                        && connection.lastActive < deadline) {
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * A request read from a connection and its response once handled
+     *
+     * @author nn1211
+     *
+     */
+    private static final class Exchange {
+
+        private final HttpRequest req;
+        private final StatusCode error;
+        private final boolean last;
+
+        /**
+         * When the request head was read, see {@link System#nanoTime()}
+         */
+        private final long start = System.nanoTime();
+
+        private boolean started;
+        private boolean done;
+        private OutboundResponse response;
+        private boolean close;
+
+        /**
+         * Whether the response won't be written, the connection being closed
+         */
+        private boolean discarded;
+
+        /**
+         * The body source if the request expects a 100 (Continue) response
+         */
+        private ContinueInputStream continuation;
+        private boolean continueRequested;
+        private boolean continueSent;
+
+        /**
+         * Create an exchange for a parsed request, or an invalid one
+         *
+         * @param req null if the request is invalid
+         * @param error the status of the response to an invalid request
+         * @param last whether this is the last request of the connection
+         */
+        Exchange(HttpRequest req, StatusCode error, boolean last) {
+            this.req = req;
+            this.error = error;
+            this.last = last;
+        }
+    }
+
+    /**
+     * The state of a connection on a reactor. Only accessed from the reactor
+     * thread.
+     *
+     * @author nn1211
+     *
+     */
+    private final class Connection {
+
+        private final Reactor reactor;
+        private final SocketChannel channel;
+        private final SocketAddress remote;
+        private final Metrics metrics = server.metrics();
+
+        private SelectionKey key;
+
+        private final HttpRequestParser parser = server.newParser();
+
+        /**
+         * Requests not answered yet, in arrival order
+         */
+        private final Deque<Exchange> exchanges = new ArrayDeque<>();
+
+        private ByteBuffer[] outbound;
+        private boolean closeAfterWrite;
+
+        /**
+         * The response whose file or stream is transferred once outbound
+         * bytes are written
+         */
+        private OutboundResponse outboundBody;
+
+        /**
+         * The body of the request being read, if any, and its exchange
+         */
+        private BodyPipe body;
+        private Exchange bodyExchange;
+        private boolean bodyPaused;
+
+        /**
+         * Number of requests received on this connection
+         */
+        private int requests;
+
+        /**
+         * Whether no more requests are accepted on this connection
+         */
+        private boolean closing;
+
+        /**
+         * Whether the client shut its side of the connection down, the
+         * connection being closed once the requests read are answered
+         */
+        private boolean inputClosed;
+
+        private boolean busy;
+        private long lastActive = System.currentTimeMillis();
+
+        Connection(Reactor reactor, SocketChannel channel) {
+            this.reactor = reactor;
+            this.channel = channel;
+            remote = channel.socket().getRemoteSocketAddress();
+            if (null != metrics) {
+                metrics.connectionOpened();
+            }
+        }
+
+        /**
+         * Read available bytes and dispatch the requests whose head is
+         * complete
+         *
+         * @throws IOException
+         */
+        void read() throws IOException {
+            ByteBuffer buf = reactor.readBuffer;
+            buf.clear();
+
+            int n = channel.read(buf);
+            if (-1 == n) {
+                inputClosed = true;
+                if (null != body) { // The body will never be complete
+                    close();
+                    return;
+                }
+
+                // Answer the requests already received before closing
+                dispatch();
+                if (exchanges.isEmpty() && !writing()) {
+                    close();
+                } else {
+                    updateInterest();
+                }
+                return;
+            }
+
+            if (0 == n) {
+                return;
+            }
+
+            lastActive = System.currentTimeMillis();
+
+            buf.flip();
+            if (null != body) {
+                bodyPaused = !body.push(buf);
+            } else {
+                parser.feed(buf);
+                dispatch();
+            }
+
+            updateInterest();
+        }
+
+        /**
+         * Dispatch every complete request of the buffer
+         */
+        private void dispatch() {
+            while (!closing && null == body
+                    && exchanges.size() < server.maxPipelinedRequests()) {
+                HttpRequest req = parser.next();
+                StatusCode error = parser.error();
+                if (null == req && null == error) {
+                    break;
+                }
+
+                // Nothing following the last request is handled
+                closing = null != error
+                        || ++requests >= server.maxRequestsPerConnection()
+                        || !server.isPersistent(req);
+                Exchange exchange = new Exchange(req, error, closing);
+                exchanges.add(exchange);
+
+                if (null != req && req.hasBody()) {
+                    attachBody(exchange);
+                }
+
+                if (server.concurrentPipelining() || 1 == exchanges.size()) {
+                    start(exchange);
+                }
+            }
+
+            parser.release();
+            busy = !exchanges.isEmpty() || writing();
+        }
+
+        /**
+         * Stream the following bytes of the connection to the body of a
+         * request, until its handler is done
+         *
+         * @param exchange
+         */
+        private void attachBody(Exchange exchange) {
+            body = new BodyPipe(BODY_BUFFER_SIZE, server.idleTimeout(),
+                    () -> reactor.execute(() -> {
+                        bodyPaused = false;
+                        updateInterest();
+                    }));
+            bodyExchange = exchange;
+            bodyPaused = !body.push(parser.take());
+
+            if (HttpServer.expectsContinue(exchange.req)) {
+                exchange.continuation = new ContinueInputStream(body,
+                        () -> reactor.execute(() -> requestContinue(exchange)));
+                parser.attachBody(exchange.req, exchange.continuation);
+            } else {
+                parser.attachBody(exchange.req, body);
+            }
+        }
+
+        /**
+         * Send a 100 (Continue) response once the responses of the previous
+         * requests are sent, on the reactor thread
+         *
+         * @param exchange
+         */
+        private void requestContinue(Exchange exchange) {
+            exchange.continueRequested = true;
+
+            try {
+                if (!writing()) {
+                    writeCompleted();
+                }
+            } catch (IOException | CancelledKeyException ex) {
+                close();
+            }
+        }
+
+        /**
+         * Handle a request on a worker thread
+         *
+         * @param exchange
+         */
+        private void start(Exchange exchange) {
+            exchange.started = true;
+            workers.execute(() -> process(exchange));
+        }
+
+        /**
+         * Handle a request on a worker thread. The response of an
+         * {@link nn1211.http.AsyncHandler} is sent once complete, no thread
+         * waiting for it.
+         *
+         * @param exchange
+         */
+        private void process(Exchange exchange) {
+            if (null == exchange.req) {
+                OutboundResponse response = null;
+                try {
+                    HttpResponse resp = FrozenResponse
+                            .error(exchange.error);
+                    server.record(remote, null, resp, exchange.start);
+                    response = server.serialize(resp, false, true);
+                } catch (IOException ex) {
+                    ex.printStackTrace(System.err);
+                }
+                deliver(exchange, response, true, true);
+                return;
+            }
+
+            CompletableFuture<HttpResponse> future = server
+                    .processAsync(exchange.req);
+            if (future.isDone() || !exchange.req.hasBody()) {
+                boolean onWorker = future.isDone();
+                future.whenComplete((resp, failure) -> respond(exchange, resp,
+                        failure, onWorker));
+            } else { // The unread body is discarded on a worker
+                future.whenCompleteAsync((resp, failure) -> respond(exchange,
+                        resp, failure, true), workers);
+            }
+        }
+
+        /**
+         * Serialize the response of a request, on the thread completing it
+         *
+         * @param exchange
+         * @param resp
+         * @param failure null unless the request couldn't be handled
+         * @param onWorker whether this is a worker thread
+         */
+        private void respond(Exchange exchange, HttpResponse resp,
+                Throwable failure, boolean onWorker) {
+
+            HttpRequest req = exchange.req;
+            OutboundResponse response = null;
+            boolean close = true;
+            try {
+                close = exchange.last || !server.isPersistent(req)
+                        || !HttpServer.discardBody(req, exchange.continuation);
+                if (null == failure) {
+                    response = server.serialize(resp, req, close);
+                    server.record(remote, req, resp, exchange.start);
+                }
+            } catch (IOException | RuntimeException ex) {
+                failure = ex;
+            }
+            if (null != failure) { // Answered with 500, or 4xx
+                response = server.fail(req, failure, close, remote,
+                        exchange.start);
+            }
+
+            deliver(exchange, response, close, onWorker);
+        }
+
+        /**
+         * Hand a response to the reactor thread, and produce its stream, if
+         * any, on a worker thread
+         *
+         * @param exchange
+         * @param response null if the connection has to be closed
+         * @param close
+         * @param onWorker whether this is a worker thread
+         */
+        private void deliver(Exchange exchange, OutboundResponse response,
+                boolean close, boolean onWorker) {
+
+            boolean stream = null != response && response.hasStream();
+            if (stream) {
+                response.pipe(BODY_BUFFER_SIZE, server.idleTimeout(),
+                        () -> reactor.execute(() -> resume(response)));
+            }
+            reactor.execute(() -> complete(exchange, response, close));
+
+            if (stream) { // Produced on a worker, sent by the reactor
+                if (onWorker) {
+                    produce(response);
+                } else {
+                    workers.execute(() -> produce(response));
+                }
+            }
+        }
+
+        private void produce(OutboundResponse response) {
+            try {
+                response.produce();
+            } catch (ClosedChannelException ex) {
+                // The connection was closed
+            } catch (IOException ex) {
+                ex.printStackTrace(System.err);
+            }
+        }
+
+        /**
+         * Send the chunks of a streamed response once produced, on the
+         * reactor thread
+         *
+         * @param response
+         */
+        private void resume(OutboundResponse response) {
+            if (response != outboundBody) {
+                return; // Not sent yet, or closed
+            }
+
+            try {
+                flush();
+            } catch (IOException | CancelledKeyException ex) {
+                close();
+            }
+        }
+
+        /**
+         * Record the response of a request, on the reactor thread
+         *
+         * @param exchange
+         * @param response
+         * @param close
+         */
+        private void complete(Exchange exchange, OutboundResponse response,
+                boolean close) {
+
+            if (exchange.discarded) {
+                if (null != response) {
+                    response.close();
+                }
+                return;
+            }
+
+            exchange.done = true;
+            exchange.response = response;
+            exchange.close = close;
+
+            if (exchange == bodyExchange) {
+                // Parse the bytes following the body
+                ByteBuffer remaining = body.takeRemaining();
+                body = null;
+                bodyExchange = null;
+                bodyPaused = false;
+
+                if (!close) {
+                    parser.feed(remaining);
+                    dispatch();
+                }
+            }
+
+            // Sequential pipelining, start the next request
+            for (Exchange next : exchanges) {
+                if (!next.started) {
+                    start(next);
+                    break;
+                }
+                if (!next.done) {
+                    break;
+                }
+            }
+
+            try {
+                if (!writing()) {
+                    writeCompleted();
+                }
+                updateInterest();
+            } catch (IOException | CancelledKeyException ex) {
+                close();
+            }
+        }
+
+        /**
+         * Write the leading completed responses with a single gathering write
+         *
+         * @throws IOException
+         */
+        private void writeCompleted() throws IOException {
+            int count = 0;
+            int bufferCount = 1;
+            Exchange pending = null;
+            for (Exchange exchange : exchanges) {
+                if (!exchange.done) {
+                    pending = exchange;
+                    break;
+                }
+                count++;
+                if (null != exchange.response) {
+                    bufferCount += exchange.response.buffers().length;
+                }
+                if (null == exchange.response || exchange.close
+                        || exchange.response.hasTransfer()) {
+                    break;
+                }
+            }
+
+            boolean sendContinue = null != pending
+                    && pending.continueRequested && !pending.continueSent;
+            if (0 == count && !sendContinue) {
+                return;
+            }
+
+            ByteBuffer[] buffers = new ByteBuffer[bufferCount];
+            int size = 0;
+            for (int i = 0; i < count; i++) {
+                Exchange exchange = exchanges.poll();
+                if (null == exchange.response) { // Invalid request
+                    closeAfterWrite = true;
+                    break;
+                }
+
+                for (ByteBuffer buffer : exchange.response.buffers()) {
+                    buffers[size++] = buffer;
+                }
+                closeAfterWrite = exchange.close;
+                if (exchange.response.hasTransfer()) {
+                    outboundBody = exchange.response;
+                }
+            }
+
+            if (closeAfterWrite) {
+                closing = true;
+                discardExchanges();
+            } else if (null == outboundBody && sendContinue) {
+                pending.continueSent = true;
+                buffers[size++] = ByteBuffer.wrap(HttpServer.CONTINUE);
+            }
+
+            if (0 == size) {
+                close();
+                return;
+            }
+
+            outbound = size == buffers.length ? buffers
+                    : Arrays.copyOf(buffers, size);
+            flush();
+        }
+
+        /**
+         * Write as much of the pending responses as possible, then continue
+         * with the next requests
+         *
+         * @throws IOException
+         */
+        void flush() throws IOException {
+            if (null != outbound) {
+                channel.write(outbound);
+
+                if (OutboundResponse.hasRemaining(outbound)) {
+                    updateInterest();
+                    return;
+                }
+
+                outbound = null;
+            }
+
+            if (null != outboundBody) {
+                if (!outboundBody.transferTo(channel)) {
+                    updateInterest();
+                    return;
+                }
+
+                outboundBody = null;
+            }
+
+            if (closeAfterWrite) {
+                close();
+                return;
+            }
+
+            lastActive = System.currentTimeMillis();
+
+            dispatch();
+            writeCompleted();
+            if (inputClosed && exchanges.isEmpty() && !writing()) {
+                close();
+                return;
+            }
+            updateInterest();
+        }
+
+        /**
+         * Read while more requests are accepted, write while responses are
+         * pending
+         */
+        private void updateInterest() {
+            if (!key.isValid()) {
+                return;
+            }
+
+            int ops = 0;
+            if (null != outbound || null != outboundBody
+                    && !outboundBody.awaitsProducer()) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            if (null != body ? !bodyPaused : !closing && !inputClosed
+                    && exchanges.size() < server.maxPipelinedRequests()) {
+                ops |= SelectionKey.OP_READ;
+            }
+
+            key.interestOps(ops);
+            busy = !exchanges.isEmpty() || writing();
+        }
+
+        /**
+         * Determine if responses are being written
+         *
+         * @return {@code true} if bytes, a file or a stream are pending
+         */
+        private boolean writing() {
+            return null != outbound || null != outboundBody;
+        }
+
+        /**
+         * Drop the requests not answered yet, releasing the files of their
+         * responses
+         */
+        private void discardExchanges() {
+            Exchange exchange;
+            while (null != (exchange = exchanges.poll())) {
+                exchange.discarded = true;
+                if (null != exchange.response) {
+                    exchange.response.close();
+                }
+            }
+        }
+
+        void close() {
+            if (null != body) {
+                body.close();
+            }
+
+            if (null != outboundBody) {
+                outboundBody.close();
+                outboundBody = null;
+            }
+            discardExchanges();
+
+            if (null != key) {
+                key.cancel();
+            }
+
+            if (null != metrics && channel.isOpen()) {
+                metrics.connectionClosed();
+            }
+            HttpServer.closeQuietly(channel);
+        }
+    }
+}
@@ -0,0 +1,342 @@
+package nn1211.http.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import nn1211.http.Content.FileContent;
+import nn1211.http.Content.StreamContent;
+
+/**
+ * A serialized response ready to be written: its buffers, sent with gathering
+ * writes, then, for a {@link FileContent}, the regions of the file transferred
+ * with {@link FileChannel#transferTo} so that they never enter the heap, or,
+ * for a {@link StreamContent}, the chunks written by its producer
+ *
+ * @author nn1211
+ *
+ */
+final class OutboundResponse {
+
+    private final ByteBuffer[] buffers;
+
+    private final FileChannel file;
+    private final FileContent content;
+
+    private final StreamContent stream;
+    private final boolean chunked;
+    private final Metrics metrics;
+
+    /**
+     * The chunks of the stream, when produced on another thread, and the one
+     * being sent
+     */
+    private ChunkPipe pipe;
+    private ByteBuffer chunk;
+
+    /**
+     * The region being sent, whose separator is sent first
+     */
+    private int region;
+    private boolean inRegion;
+    private ByteBuffer separator;
+    private long position;
+    private long end;
+
+    /**
+     * Create a response made of buffers only
+     *
+     * @param buffers
+     */
+    OutboundResponse(ByteBuffer[] buffers) {
+        this(buffers, null, (FileContent) null);
+    }
+
+    /**
+     * Create a response whose buffers are followed by a file content
+     *
+     * @param buffers the status line and header block
+     * @param file null or the opened file of the content, closed once
+     * transferred
+     * @param content the regions of the file to send
+     */
+    OutboundResponse(ByteBuffer[] buffers, FileChannel file,
+            FileContent content) {
+        this.buffers = buffers;
+        this.file = file;
+        this.content = content;
+        this.stream = null;
+        this.chunked = false;
+        this.metrics = null;
+    }
+
+    /**
+     * Create a response whose buffers are followed by the chunks of a stream
+     *
+     * @param buffers the status line and header block
+     * @param stream
+     * @param chunked whether the stream is sent with the chunked transfer
+     * coding, otherwise as is, the connection being closed after it
+     * @param metrics null or the metrics counting the bytes of the chunks
+     */
+    OutboundResponse(ByteBuffer[] buffers, StreamContent stream,
+            boolean chunked, Metrics metrics) {
+        this.buffers = buffers;
+        this.file = null;
+        this.content = null;
+        this.stream = stream;
+        this.chunked = chunked;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Get the buffers of this response, followed by the file if any
+     *
+     * @return the buffers of this response
+     */
+    ByteBuffer[] buffers() {
+        return buffers;
+    }
+
+    /**
+     * Determine if a file or a stream follows the bytes of this response
+     *
+     * @return {@code true} if a body has to be transferred
+     */
+    boolean hasTransfer() {
+        return null != file || null != stream;
+    }
+
+    /**
+     * Determine if the body of this response is produced while it is sent
+     *
+     * @return {@code true} for a {@link StreamContent} body
+     */
+    boolean hasStream() {
+        return null != stream;
+    }
+
+    /**
+     * Produce the stream of this response on another thread than the one
+     * sending it, see {@link #produce()}
+     *
+     * @param capacity the number of pending bytes above which the producer
+     * waits
+     * @param timeout how long, in milliseconds, the producer waits for the
+     * connection to accept bytes
+     * @param onAvailable run when the sender can send chunks again
+     */
+    void pipe(int capacity, long timeout, Runnable onAvailable) {
+        pipe = new ChunkPipe(capacity, timeout, onAvailable);
+    }
+
+    /**
+     * Run the producer of the stream into its pipe
+     *
+     * @throws IOException if the producer fails or the connection is closed
+     */
+    void produce() throws IOException {
+        try {
+            produceTo(pipe);
+        } catch (IOException ex) {
+            pipe.fail();
+            throw ex;
+        }
+
+        pipe.finish();
+    }
+
+    /**
+     * Determine if the sender waits for the producer of the stream, and is
+     * notified once chunks are available
+     *
+     * @return {@code true} if no chunk is available
+     */
+    boolean awaitsProducer() {
+        return null != pipe && null == chunk && pipe.isStarved();
+    }
+
+    /**
+     * Write buffers to a blocking connection
+     *
+     * @param channel
+     * @param buffers
+     * @throws IOException
+     */
+    static void writeFully(GatheringByteChannel channel, ByteBuffer[] buffers)
+            throws IOException {
+
+        while (hasRemaining(buffers)) {
+            channel.write(buffers);
+        }
+    }
+
+    /**
+     * Count the bytes of buffers not written yet
+     *
+     * @param buffers
+     * @return the number of remaining bytes
+     */
+    static long remaining(ByteBuffer[] buffers) {
+        long count = 0;
+        for (ByteBuffer buffer : buffers) {
+            count += buffer.remaining();
+        }
+
+        return count;
+    }
+
+    /**
+     * Determine if some bytes of buffers are not written yet
+     *
+     * @param buffers
+     * @return {@code true} if a buffer has remaining bytes
+     */
+    static boolean hasRemaining(ByteBuffer[] buffers) {
+        for (int i = buffers.length - 1; i >= 0; i--) {
+            if (buffers[i].hasRemaining()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Transfer the file of this response, if any, to a blocking connection,
+     * or produce its stream to the connection
+     *
+     * @param channel
+     * @throws IOException
+     */
+    void transferFully(GatheringByteChannel channel) throws IOException {
+        if (null != stream) {
+            produceTo(buffers -> writeFully(channel, buffers));
+        } else if (null != file) {
+            while (!transferTo(channel)) {
+                // A blocking channel may still transfer less than requested
+            }
+        }
+    }
+
+    /**
+     * Transfer as much of the file content, or of the produced chunks, as the
+     * connection accepts
+     *
+     * @param channel
+     * @return {@code true} once the whole content is transferred, and the
+     * file closed
+     * @throws IOException if the file is shorter than announced, or the
+     * producer failed
+     */
+    boolean transferTo(WritableByteChannel channel) throws IOException {
+        if (null != pipe) {
+            return sendChunks(channel);
+        }
+
+        try {
+            for (;;) {
+                if (!inRegion) {
+                    if (null == separator) {
+                        byte[] bytes = content.separator(region);
+                        separator = ByteBuffer
+                                .wrap(null == bytes ? new byte[0] : bytes);
+                    }
+
+                    if (separator.hasRemaining()) {
+                        channel.write(separator);
+                        if (separator.hasRemaining()) {
+                            return false; // The connection doesn't accept more
+                        }
+                    }
+                    separator = null;
+
+                    if (region == content.regions()) {
+                        break; // The bytes following the last region
+                    }
+
+                    inRegion = true;
+                    position = content.position(region);
+                    end = position + content.length(region);
+                }
+
+                while (position < end) {
+                    long n = file.transferTo(position, end - position,
+                            channel);
+                    if (0 == n) {
+                        if (position >= file.size()) {
+                            throw new EOFException("File truncated while sent");
+                        }
+                        return false; // The connection doesn't accept more
+                    }
+                    position += n;
+                }
+
+                inRegion = false;
+                region++;
+            }
+        } catch (IOException ex) {
+            close();
+            throw ex;
+        }
+
+        close();
+        return true;
+    }
+
+    private boolean sendChunks(WritableByteChannel channel)
+            throws IOException {
+
+        for (;;) {
+            if (null == chunk) {
+                chunk = pipe.poll();
+                if (null == chunk) {
+                    return pipe.isFinished();
+                }
+            }
+
+            channel.write(chunk);
+            if (chunk.hasRemaining()) {
+                return false; // The connection doesn't accept more
+            }
+            chunk = null;
+        }
+    }
+
+    /**
+     * Run the producer of the stream, then send the last chunk. Runtime
+     * failures of the producer are reported as I/O failures, the response
+     * being incomplete either way.
+     *
+     * @param sink
+     * @throws IOException
+     */
+    private void produceTo(ChunkedOutputStream.Sink sink) throws IOException {
+        ChunkedOutputStream out = new ChunkedOutputStream(null == metrics
+                ? sink : data -> {
+                    metrics.wrote(remaining(data));
+                    sink.write(data);
+                }, chunked);
+        try {
+            stream.producer().writeTo(out);
+        } catch (RuntimeException ex) {
+            throw new IOException("Response stream failed", ex);
+        }
+        out.close();
+    }
+
+    /**
+     * Release the file of this response, if any, and stop its producer
+     */
+    void close() {
+        if (null != file) {
+            HttpServer.closeQuietly(file);
+        }
+        if (null != pipe) {
+            pipe.close();
+        }
+    }
+}